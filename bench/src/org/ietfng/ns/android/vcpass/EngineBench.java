@@ -0,0 +1,56 @@
+package org.ietfng.ns.android.vcpass;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Keystream throughput of each VCKeystreamEngine.
+ *
+ * "cold" forgets any CFB8 checkpoints first, so legacy engines run
+ * their stream end to end; "tiles" is the steady state.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBench {
+
+    /** VCKeystreamEngine names */
+    @Param({"bc-cfb8", "jce-cfb8", "bc-ctr", "jce-ctr", "bc-chacha20"})
+    public String engine;
+
+    private char[] vseed;
+    private int format;
+
+    @Setup
+    public void setup() {
+        vseed = "benchmark vocabulary seed".toCharArray();
+        VCKeystreamEngine e = VCKeystreamEngine.named(engine);
+        VCKeystreamEngine.use(e);
+        format = e.format;
+    }
+
+    @Benchmark
+    public byte[] cold() throws GeneralSecurityException {
+        VCCheckpoints.clear();
+        return VCGenerator.generateTiles(vseed, format, null);
+    }
+
+    @Benchmark
+    public byte[] tiles() throws GeneralSecurityException {
+        return VCGenerator.generateTiles(vseed, format, null);
+    }
+}
@@ -0,0 +1,105 @@
+package org.ietfng.ns.android.vcpass;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Slide and challenge generation, and conversion to pixels.
+ *
+ * Every benchmark runs in both throughput and sampled-latency mode;
+ * add "-prof gc" for allocation rates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeneratorBench {
+
+    /** VCCrypto.FORMAT_* */
+    @Param({"1", "2", "3"})
+    public int format;
+
+    /** Shape of the challenge's vocabulary selections:
+     *  first: every cell shows entry 0 (distinguished, little skipping)
+     *  last:  every cell shows the last, undistinguished, entry
+     *  mixed: uniformly random entries, as do_createChallenge draws
+     */
+    @Param({"first", "last", "mixed"})
+    public String plain;
+
+    private char[] useed;
+    private char[] vseed;
+    private int[] pv;
+
+    private byte[] slidebits;
+    private Integer[][] slidearr;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        useed = "benchmark user slide seed".toCharArray();
+        vseed = "benchmark vocabulary seed".toCharArray();
+
+        pv = new int[VCParameters.GRID_X*VCParameters.GRID_Y];
+        Random r = new Random(0x2224);
+        for(int i = 0; i < pv.length; i++) {
+            if(plain.equals("first")) {
+                pv[i] = 0;
+            } else if(plain.equals("last")) {
+                pv[i] = VCParameters.VCVOC_SIZE - 1;
+            } else {
+                pv[i] = r.nextInt(VCParameters.VCVOC_SIZE);
+            }
+        }
+
+        slidebits = VCGenerator.generateSlideBits(useed, format, null);
+        slidearr = VCGenerator.bitsToVCArray(slidebits);
+    }
+
+    @Benchmark
+    public byte[] generateSlideBits() throws GeneralSecurityException {
+        return VCGenerator.generateSlideBits(useed, format, null);
+    }
+
+    @Benchmark
+    public Integer[][] generateSlide() throws GeneralSecurityException {
+        return VCGenerator.bitsToVCArray(
+                    VCGenerator.generateSlideBits(useed, format, null));
+    }
+
+    @Benchmark
+    public byte[] generateChallengeBits() throws GeneralSecurityException {
+        return VCGenerator.generateChallengeBits(vseed, useed, pv,
+                                                 format, null);
+    }
+
+    @Benchmark
+    public Integer[][] generateChallenge() throws GeneralSecurityException {
+        return VCGenerator.bitsToVCArray(
+                    VCGenerator.generateChallengeBits(vseed, useed, pv,
+                                                      format, null));
+    }
+
+    @Benchmark
+    public int[][] vcArrayToPixels() {
+        return VCGenerator.vcArrayToPixels(slidearr);
+    }
+
+    @Benchmark
+    public int[][] bitsToPixels() {
+        return VCGenerator.bitsToPixels(slidebits);
+    }
+}
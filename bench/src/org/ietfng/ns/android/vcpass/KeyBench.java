@@ -0,0 +1,52 @@
+package org.ietfng.ns.android.vcpass;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Seed to keystream setup: what seedToCipher used to do.
+ *
+ * "derive" empties VCKeyCache first and so always pays for the KDF;
+ * "open" measures the cached path every generator call now takes.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyBench {
+
+    /** VCCrypto.FORMAT_* */
+    @Param({"1", "2", "3"})
+    public int format;
+
+    private char[] seed;
+
+    @Setup
+    public void setup() {
+        seed = "benchmark user slide seed".toCharArray();
+    }
+
+    @Benchmark
+    public VCKeystream derive() throws GeneralSecurityException {
+        VCKeyCache.clear();
+        return VCKeystream.open(seed, format, 1);
+    }
+
+    @Benchmark
+    public VCKeystream open() throws GeneralSecurityException {
+        return VCKeystream.open(seed, format, 1);
+    }
+}
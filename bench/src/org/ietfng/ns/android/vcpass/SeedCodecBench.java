@@ -0,0 +1,55 @@
+package org.ietfng.ns.android.vcpass;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Seed pair encoding, with seeds shaped like VCSlideGen's. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SeedCodecBench {
+
+    private char[] useed;
+    private char[] vseed;
+    private String encoded;
+
+    private static char[] randChars(Random r, int size) {
+        char[] c = new char[size];
+        for(int i = 0; i < size; i++) {
+            c[i] = (char)(r.nextInt(127-32)+32);
+        }
+        return c;
+    }
+
+    @Setup
+    public void setup() {
+        Random r = new Random(0x2224);
+        useed = randChars(r, 128);
+        vseed = randChars(r, 128);
+        encoded = VCSeedCodec.encode_seeds(useed, vseed);
+    }
+
+    @Benchmark
+    public String encode_seeds() {
+        return VCSeedCodec.encode_seeds(useed, vseed);
+    }
+
+    @Benchmark
+    public char[][] decode_seeds() {
+        return VCSeedCodec.decode_seeds(encoded);
+    }
+}
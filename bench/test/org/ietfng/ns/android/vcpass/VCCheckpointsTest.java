@@ -0,0 +1,116 @@
+package org.ietfng.ns.android.vcpass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.Security;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** CFB8 streams resumed from checkpoints, in memory and on disk. */
+public class VCCheckpointsTest {
+
+    private static final char[] VSEED
+        = "checkpointed vocabulary seed".toCharArray();
+    private static final int ENTRIES = VCParameters.VCVOC_SIZE;
+    private static final int CELLBYTES = VCGenerator.cellbytes*ENTRIES;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Security.addProvider(VCCrypto.provider());
+    }
+
+    @Before
+    public void setUp() {
+        VCCheckpoints.clear();
+    }
+
+    private static VCKeystream
+    open() throws Exception {
+        return VCKeystream.open(VSEED, VCCrypto.FORMAT_CFB8, ENTRIES);
+    }
+
+    /* Every cell, in order, from a fresh stream */
+    private static byte[]
+    sequential() throws Exception {
+        VCKeystream ks = open();
+        byte[] out = new byte[VCGenerator.cells*CELLBYTES];
+        for(int i = 0; i < VCGenerator.cells; i++) {
+            ks.entries(i, out, i*CELLBYTES);
+        }
+        return out;
+    }
+
+    @Test
+    public void resumeMatchesSequential() throws Exception {
+        assertFalse(open().seekable());
+        byte[] seq = sequential();
+
+        /* That pass left checkpoints; take the cells backwards */
+        VCKeystream ks = open();
+        assertTrue(ks.seekable());
+        byte[] out = new byte[seq.length];
+        for(int i = VCGenerator.cells - 1; i >= 0; i--) {
+            ks.entries(i, out, i*CELLBYTES);
+        }
+        assertArrayEquals(seq, out);
+    }
+
+    @Test
+    public void recordAndRestore() throws Exception {
+        File dir = tmp.getRoot();
+        byte[] seq = sequential();
+        VCCheckpoints.clear();
+
+        assertTrue(VCCheckpoints.record(dir, VSEED, ENTRIES));
+        assertEquals(1, dir.list().length);
+
+        VCCheckpoints.clear();
+        assertFalse(open().seekable());
+        VCCheckpoints.restore(dir, VSEED, ENTRIES);
+        VCKeystream ks = open();
+        assertTrue(ks.seekable());
+
+        byte[] out = new byte[seq.length];
+        for(int i = VCGenerator.cells - 1; i >= 0; i--) {
+            ks.entries(i, out, i*CELLBYTES);
+        }
+        assertArrayEquals(seq, out);
+
+        VCCheckpoints.forget(dir, VSEED, ENTRIES);
+        assertEquals(0, dir.list().length);
+        assertFalse(open().seekable());
+    }
+
+    @Test
+    public void tamperedFileIsIgnored() throws Exception {
+        File dir = tmp.getRoot();
+        assertTrue(VCCheckpoints.record(dir, VSEED, ENTRIES));
+        File f = dir.listFiles()[0];
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek(40);
+            int b = raf.read();
+            raf.seek(40);
+            raf.write(b ^ 1);
+        } finally {
+            raf.close();
+        }
+
+        VCCheckpoints.clear();
+        VCCheckpoints.restore(dir, VSEED, ENTRIES);
+        assertFalse(open().seekable());
+    }
+}
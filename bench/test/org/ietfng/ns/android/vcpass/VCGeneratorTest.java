@@ -0,0 +1,160 @@
+package org.ietfng.ns.android.vcpass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Generator output against fixed baselines.
+ *
+ * The hashes are of bitplanes from fixed seeds; every engine for a
+ * format must give them, and each faster path (tiles, cells in
+ * parallel) must give the same bits as the plain sequential one.
+ */
+public class VCGeneratorTest {
+
+    private static final char[] USEED
+        = "fixed user slide seed".toCharArray();
+    private static final char[] VSEED
+        = "fixed vocabulary seed".toCharArray();
+
+    /* SHA-256 of the slide and of the challenge for PLAIN, by format */
+    private static final String[][] BASELINE = {
+        null,
+        { "084c328deb923064853d7abfabd3388aba94024fbc79cb68043ee5a593c1934f",
+          "400304b4f80da6fb076f6245385c4c33ba81022819137728d2f381d4d03d9c07" },
+        { "c61c76181d891dbab4847b5864a1fb39b437e7aae71e234c2f04cfb63b088d6b",
+          "312bb75fbbce6855d8c13326587d7952ed43b28824da537ec267609e981f494b" },
+        { "fa1316e0c4b51e7a6ed30eee0588e6c6832c889fea8fef4d3ecc856888e5f2a6",
+          "5f3a999adba95ee206818ff068ee9edee47cadc3872384dc7a5915298b93491c" },
+    };
+
+    private static final int[] FORMATS = {
+        VCCrypto.FORMAT_CFB8, VCCrypto.FORMAT_CTR, VCCrypto.FORMAT_CHACHA20
+    };
+
+    private static int[] PLAIN;
+    private static ExecutorService exec;
+
+    @BeforeClass
+    public static void setUp() {
+        Security.addProvider(VCCrypto.provider());
+        PLAIN = new int[VCGenerator.cells];
+        for(int i = 0; i < PLAIN.length; i++) {
+            PLAIN[i] = (i*7+8) % VCParameters.VCVOC_SIZE;
+        }
+        exec = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        exec.shutdown();
+    }
+
+    static String
+    sha256(byte[] b) throws GeneralSecurityException {
+        StringBuilder sb = new StringBuilder();
+        for(byte x : MessageDigest.getInstance("SHA-256").digest(b)) {
+            sb.append(Integer.toHexString((x & 0xFF) | 0x100).substring(1));
+        }
+        return sb.toString();
+    }
+
+    /* Start each run from nothing cached */
+    private static void
+    forget() {
+        VCCheckpoints.clear();
+        VCSlideCache.clear();
+        VCTileStore.clear();
+    }
+
+    @Test
+    public void formatsMatchBaseline() throws Exception {
+        for(int f : FORMATS) {
+            forget();
+            byte[] slide = VCGenerator.generateSlideBits(USEED, f, null, null);
+            byte[] chal = VCGenerator.generateChallengeBits(
+                                VSEED, USEED, PLAIN, f, null, null);
+            assertEquals("format " + f + " slide",
+                         BASELINE[f][0], sha256(slide));
+            assertEquals("format " + f + " challenge",
+                         BASELINE[f][1], sha256(chal));
+        }
+    }
+
+    @Test
+    public void everyEngineMatchesBaseline() throws Exception {
+        for(VCKeystreamEngine e : VCKeystreamEngine.ALL) {
+            VCKeystreamEngine prev = VCKeystreamEngine.use(e.format, e);
+            try {
+                forget();
+                byte[] slide = VCGenerator.generateSlideBits(
+                                    USEED, e.format, null, null);
+                byte[] chal = VCGenerator.generateChallengeBits(
+                                    VSEED, USEED, PLAIN, e.format,
+                                    null, null);
+                assertEquals(e.name + " slide",
+                             BASELINE[e.format][0], sha256(slide));
+                assertEquals(e.name + " challenge",
+                             BASELINE[e.format][1], sha256(chal));
+            } finally {
+                VCKeystreamEngine.use(e.format, prev);
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        for(int f : FORMATS) {
+            forget();
+            byte[] seq = VCGenerator.generateChallengeBits(
+                                VSEED, USEED, PLAIN, f, null, null);
+            /* Run twice, so that CFB8 resumes from its checkpoints */
+            for(int r = 0; r < 2; r++) {
+                byte[] par = VCGenerator.generateChallengeBits(
+                                VSEED, USEED, PLAIN, f, exec, null);
+                assertArrayEquals("format " + f, seq, par);
+            }
+            assertArrayEquals("format " + f + " slide",
+                VCGenerator.generateSlideBits(USEED, f, null, null),
+                VCGenerator.generateSlideBits(USEED, f, exec, null));
+        }
+    }
+
+    @Test
+    public void assembledMatchesGenerated() throws Exception {
+        for(int f : FORMATS) {
+            forget();
+            byte[] tiles = VCGenerator.generateTiles(VSEED, f, null);
+            byte[] slide = VCGenerator.generateSlideBits(USEED, f, null, null);
+            assertNotNull(tiles);
+
+            /* Every entry in every cell, not just PLAIN's */
+            int[] plain = new int[VCGenerator.cells];
+            for(int e = 0; e < VCParameters.VCVOC_SIZE; e++) {
+                for(int i = 0; i < plain.length; i++) {
+                    plain[i] = (i + e) % VCParameters.VCVOC_SIZE;
+                }
+                assertArrayEquals("format " + f + " entry " + e,
+                    VCGenerator.generateChallengeBits(VSEED, USEED, plain,
+                                                      f, null, null),
+                    VCGenerator.assembleChallengeBits(tiles, slide, plain));
+            }
+
+            assertArrayEquals("format " + f + " store",
+                VCGenerator.generateChallengeBits(VSEED, USEED, PLAIN,
+                                                  f, null, null),
+                VCTileStore.challengeBits(null, VSEED, USEED, f,
+                                          PLAIN, null));
+        }
+    }
+}
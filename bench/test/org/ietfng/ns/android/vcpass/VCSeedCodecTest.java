@@ -0,0 +1,135 @@
+package org.ietfng.ns.android.vcpass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Both seed pair forms, there and back, and broken ones. */
+public class VCSeedCodecTest {
+
+    private static final Random r = new Random(20241018);
+
+    private static char[]
+    textSeed(int len) {
+        char[] c = new char[len];
+        for(int i = 0; i < len; i++) {
+            /* Printable, including the netstring ':' */
+            c[i] = (char)(' ' + r.nextInt(95));
+        }
+        return c;
+    }
+
+    private static char[]
+    octetSeed(int len) {
+        byte[] b = new byte[len];
+        r.nextBytes(b);
+        return VCSeedCodec.seedChars(b);
+    }
+
+    private static void
+    assertPair(char[] u, char[] v, char[][] ds) {
+        assertArrayEquals(u, ds[0]);
+        assertArrayEquals(v, ds[1]);
+    }
+
+    private static void
+    assertRejected(CharSequence s) {
+        try {
+            VCSeedCodec.decode_seeds(s);
+            fail("decoded " + s);
+        } catch (IllegalArgumentException iae) {
+            /* As it should */
+        }
+    }
+
+    @Test
+    public void textRoundTrip() {
+        for(int n = 0; n < 200; n++) {
+            char[] u = textSeed(1 + r.nextInt(130));
+            char[] v = textSeed(1 + r.nextInt(130));
+
+            String s = VCSeedCodec.encode_seeds(u, v);
+            assertPair(u, v, VCSeedCodec.decode_seeds(s));
+            assertEquals(VCCrypto.FORMAT_DEFAULT,
+                         VCSeedCodec.decode_format(s));
+
+            /* Inside a larger array, and as a CharSequence */
+            char[] c = VCSeedCodec.encode_seeds_chars(u, v);
+            char[] pad = new char[c.length + 6];
+            System.arraycopy(c, 0, pad, 3, c.length);
+            assertPair(u, v, VCSeedCodec.decode_seeds(pad, 3, c.length));
+            assertPair(u, v, VCSeedCodec.decode_seeds(CharBuffer.wrap(c)));
+        }
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        int[] formats = { VCCrypto.FORMAT_CFB8, VCCrypto.FORMAT_CTR,
+                          VCCrypto.FORMAT_CHACHA20 };
+        for(int n = 0; n < 200; n++) {
+            char[] u = octetSeed(1 + r.nextInt(VCSeedCodec.SEED_OCTETS*2));
+            char[] v = octetSeed(1 + r.nextInt(VCSeedCodec.SEED_OCTETS*2));
+            int f = formats[n % formats.length];
+
+            String s = VCSeedCodec.encode_seeds_binary(u, v, f);
+            assertPair(u, v, VCSeedCodec.decode_seeds(s));
+            assertEquals(f, VCSeedCodec.decode_format(s));
+
+            char[] c = VCSeedCodec.encode_seeds_binary_chars(u, v, f);
+            assertEquals(s, new String(c));
+            assertPair(u, v, VCSeedCodec.decode_seeds(c, 0, c.length));
+        }
+    }
+
+    @Test
+    public void corruptedChecksum() {
+        char[] u = octetSeed(VCSeedCodec.SEED_OCTETS);
+        char[] v = octetSeed(VCSeedCodec.SEED_OCTETS);
+        String s = VCSeedCodec.encode_seeds_binary(u, v,
+                                                   VCCrypto.FORMAT_CTR);
+        String b32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+        /* A bit of any one character, seeds and CRC alike; the top
+         * one, as the last character's low bits are only padding */
+        for(int i = VCSeedCodec.BINARY_PREFIX.length(); i < s.length(); i++) {
+            char[] c = s.toCharArray();
+            c[i] = b32.charAt(b32.indexOf(c[i]) ^ 0x10);
+            assertRejected(new String(c));
+        }
+    }
+
+    @Test
+    public void truncated() {
+        char[] u = textSeed(40);
+        char[] v = textSeed(40);
+
+        String b = VCSeedCodec.encode_seeds_binary(
+                        VCSeedCodec.seedChars(new byte[32]),
+                        VCSeedCodec.seedChars(new byte[32]),
+                        VCCrypto.FORMAT_CFB8);
+        for(int n = VCSeedCodec.BINARY_PREFIX.length(); n < b.length(); n++) {
+            assertRejected(b.substring(0, n));
+        }
+
+        /* The text form has no checksum, but the first seed's length
+         * must still fit. */
+        String t = VCSeedCodec.encode_seeds(u, v);
+        int uend = t.indexOf(':') + 1 + u.length;
+        for(int n = 0; n < uend; n++) {
+            assertRejected(t.substring(0, n));
+        }
+    }
+
+    @Test
+    public void garbage() {
+        assertRejected("");
+        assertRejected("x:abc");
+        assertRejected("99:abc2:de");
+        assertRejected("VC!!!!");
+    }
+}
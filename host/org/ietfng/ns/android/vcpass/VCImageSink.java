@@ -0,0 +1,148 @@
+/** Streaming 1-bit image output for the host tools.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Images are fed in one row at a time as packed bits (MSB first, 1 for
+ * black; the layout of PBM's P4 raster and of VCGenerator.bitsToRow)
+ * and pushed through a ByteBuffer into a channel, so that nobody needs
+ * to hold a whole image of ints or write a character at a time.
+ */
+abstract class VCImageSink {
+        /** Plain (ASCII) PBM: one '0' or '1' per pixel */
+    static final int PBM_P1 = 1;
+        /** Raw PBM: packed bits */
+    static final int PBM_P4 = 4;
+
+    private static final int BUFSIZE = 64*1024;
+
+    final int width;
+    final int height;
+    final int rowbytes;
+
+    private final WritableByteChannel ch;
+    protected final ByteBuffer buf;
+    private int rows = 0;
+
+    VCImageSink(WritableByteChannel ch, int magic, int width, int height)
+    throws IOException
+    {
+        this.ch = ch;
+        this.width = width;
+        this.height = height;
+        this.rowbytes = (width+7)/8;
+        this.buf = ByteBuffer.allocate(Math.max(BUFSIZE, width+1));
+
+        String hdr = "P" + magic + " " + width + " " + height + "\n";
+        buf.put(hdr.getBytes("US-ASCII"));
+    }
+
+    /** Emit the next row: width bits at bits[0 .. rowbytes) */
+    final void
+    row(byte[] bits)
+    throws IOException
+    {
+        assert(rows < height);
+        rows++;
+        emit(bits);
+    }
+
+    protected abstract void emit(byte[] bits) throws IOException;
+
+    /** Make room for at least n more octets in buf */
+    protected final void
+    reserve(int n)
+    throws IOException
+    {
+        if(buf.remaining() < n) {
+            drain();
+        }
+    }
+
+    private final void
+    drain()
+    throws IOException
+    {
+        buf.flip();
+        while(buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    /** Flush and close the underlying channel. */
+    final void
+    close()
+    throws IOException
+    {
+        assert(rows == height);
+        drain();
+        ch.close();
+    }
+
+    /** Open a sink writing to the channel in the given PBM flavour */
+    static final VCImageSink
+    open(WritableByteChannel ch, int magic, int width, int height)
+    throws IOException
+    {
+        switch(magic) {
+            case PBM_P1: return new P1(ch, width, height);
+            case PBM_P4: return new P4(ch, width, height);
+            default:
+                throw new IllegalArgumentException("Bad PBM type " + magic);
+        }
+    }
+
+    /** Open a sink writing to a new file */
+    static final VCImageSink
+    open(String path, int magic, int width, int height)
+    throws IOException
+    {
+        return open(new FileOutputStream(path).getChannel(),
+                    magic, width, height);
+    }
+
+    private static final class P1 extends VCImageSink {
+        P1(WritableByteChannel ch, int width, int height)
+        throws IOException
+        {
+            super(ch, PBM_P1, width, height);
+        }
+
+        protected void
+        emit(byte[] bits)
+        throws IOException
+        {
+            reserve(width+1);
+            for(int x = 0; x < width; x++) {
+                buf.put((bits[x/8] & (0x80 >> (x%8))) != 0
+                            ? (byte)'1' : (byte)'0');
+            }
+            buf.put((byte)'\n');
+        }
+    }
+
+    private static final class P4 extends VCImageSink {
+        P4(WritableByteChannel ch, int width, int height)
+        throws IOException
+        {
+            super(ch, PBM_P4, width, height);
+        }
+
+        protected void
+        emit(byte[] bits)
+        throws IOException
+        {
+            reserve(rowbytes);
+            buf.put(bits, 0, rowbytes);
+        }
+    }
+}
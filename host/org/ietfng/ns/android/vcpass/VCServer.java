@@ -0,0 +1,637 @@
+/** Host-side challenge and verification server.
+ *
+ * Required classpath entries are as for VCSlideGen, less zxing.
+ *
+ * Build with:
+ *      javac -d bin/classes -cp bin/classes:... \
+ *            host/org/ietfng/ns/android/vcpass/VCServer.java
+ *
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/*
+ * Issues challenges to, and checks responses from, enrolled users over
+ * HTTP, so that the scheme can serve as a second factor for logins
+ * elsewhere:
+ *
+ *      POST /challenge?user=U
+ *          200 with the challenge as a raw PBM (P4) and its session
+ *          in an X-VC-Session header; 404 for an unknown user.
+ *      POST /verify?user=U&session=S&response=R
+ *          200 "ok" if R (as VCResponse.encode) is the answer to U's
+ *          challenge S, else 403; 404 for an unknown or expired
+ *          session, or one issued to someone else.  Either way the
+ *          session is over: there is one guess per challenge.
+ *
+ * A user who gives too many wrong answers in a row is locked out for
+ * a while: their challenges and answers get 429 until it passes, so
+ * that guessing costs more than one request per try.  Challenges cost
+ * CPU and a session each, and anyone who knows a username may ask for
+ * them; so each user may also have only so many sessions open, and be
+ * issued only so many challenges a minute, beyond which /challenge
+ * gets 429 too.
+ *
+ * Parameters may also come as an application/x-www-form-urlencoded
+ * body.  Users, and their seeds as VCSeedCodec.encode_seeds, are read
+ * at startup from a "user TAB seeds" file such as VCSlideGen -k
+ * writes.
+ *
+ * The answer to each challenge stays here, in a table of sessions
+ * that expire after a TTL; a sweeper drops expired ones, and a full
+ * table refuses new challenges with 503.  Generation is CPU-bound,
+ * so requests run on a fixed pool of about one thread per CPU, and
+ * the key, slide and checkpoint caches are sized for the users
+ * rather than for the one a phone has.
+ */
+public final class VCServer {
+
+    static final private Options cliopts = new Options();
+    static final private String OPT_SV_HELP   = "h";
+    static final private String OPT_SV_USERS  = "u";
+    static final private String OPT_SV_PORT   = "p";
+    static final private String OPT_SV_BIND   = "b";
+    static final private String OPT_SV_FORMAT = "F";
+    static final private String OPT_SV_THREAD = "j";
+    static final private String OPT_SV_TTL    = "t";
+    static final private String OPT_SV_MINEVT = "m";
+    static final private String OPT_SV_MAXSES = "n";
+    static final private String OPT_SV_TRACE  = "T";
+    static final private String OPT_SV_CACHE  = "C";
+    static final private String OPT_SV_FAILS  = "f";
+    static final private String OPT_SV_LOCK   = "l";
+    static final private String OPT_SV_OPEN   = "s";
+    static final private String OPT_SV_RATE   = "r";
+
+    static {
+        cliopts.addOption(OPT_SV_HELP, "help", false, "Show this help");
+        cliopts.addOption(OPT_SV_USERS, "users", true,
+                            "File of user TAB seeds lines (required)");
+        cliopts.addOption(OPT_SV_PORT, "port", true,
+                            "Port to listen on (default 8080)");
+        cliopts.addOption(OPT_SV_BIND, "bind", true,
+                            "Address to listen on (default 127.0.0.1)");
+        cliopts.addOption(OPT_SV_FORMAT, "format", true,
+                            "Keystream format: cfb8 (default), ctr or chacha20");
+        cliopts.addOption(OPT_SV_THREAD, "threads", true,
+                            "Request threads (default: one per CPU)");
+        cliopts.addOption(OPT_SV_TTL, "ttl", true,
+                            "Seconds a challenge may be answered in (default 120)");
+        cliopts.addOption(OPT_SV_MINEVT, "minevents", true,
+                            "Distinguished cells per challenge (default 1)");
+        cliopts.addOption(OPT_SV_MAXSES, "sessions", true,
+                            "Most open sessions (default 100000)");
+        cliopts.addOption(OPT_SV_TRACE, "trace", false,
+                            "Print generation traces to stderr as JSON");
+        cliopts.addOption(OPT_SV_CACHE, "cache", true,
+                            "Users to cache keys and slides for (default: all, up to 4096)");
+        cliopts.addOption(OPT_SV_FAILS, "failures", true,
+                            "Wrong answers in a row before a lockout (default 5)");
+        cliopts.addOption(OPT_SV_LOCK, "lockout", true,
+                            "Seconds a lockout lasts (default 300)");
+        cliopts.addOption(OPT_SV_OPEN, "usersessions", true,
+                            "Most open sessions per user (default 4)");
+        cliopts.addOption(OPT_SV_RATE, "rate", true,
+                            "Challenges per user per minute (default 20; 0 for no limit)");
+    }
+
+    private static final int SESSION_BYTES = 16;
+    private static final int MAX_FORM = 4096;
+    private static final int MAX_CACHED = 4096;
+    private static final long RATE_WINDOW = 60000;
+
+    private static final class Session {
+        final String user;
+        final String plain;
+        final long expires;
+
+        Session(String user, String plain, long expires) {
+            this.user = user;
+            this.plain = plain;
+            this.expires = expires;
+        }
+    }
+
+    /* What each user is allowed; guarded by itself */
+    private static final class Account {
+        int fails;          // Wrong answers in a row
+        long until;         // End of any lockout
+        int open;           // Sessions not yet ended
+        long window;        // Start of this rate window
+        int issued;         // Challenges issued in it
+    }
+
+    private final Map<String,char[][]> users;
+    private final int format;
+    private final int minevt;
+    private final long ttl;
+    private final int maxsessions;
+    private final int maxfails;
+    private final long lockout;
+    private final int maxopen;
+    private final int rate;
+
+    private final ConcurrentHashMap<String,Session> sessions
+        = new ConcurrentHashMap<String,Session>();
+    /* One per user, made up front, so never changed after */
+    private final Map<String,Account> accounts
+        = new HashMap<String,Account>();
+
+    /* SecureRandom serializes its callers; give each thread its own */
+    private static final ThreadLocal<SecureRandom> rng
+        = new ThreadLocal<SecureRandom>() {
+            protected SecureRandom initialValue() {
+                return new SecureRandom();
+            }
+        };
+
+    VCServer(Map<String,char[][]> users, int format, int minevt,
+             long ttl, int maxsessions, int maxfails, long lockout,
+             int maxopen, int rate)
+    {
+        this.users = users;
+        this.format = format;
+        this.minevt = minevt;
+        this.ttl = ttl;
+        this.maxsessions = maxsessions;
+        this.maxfails = maxfails;
+        this.lockout = lockout;
+        this.maxopen = maxopen;
+        this.rate = rate;
+        for(String u : users.keySet()) {
+            accounts.put(u, new Account());
+        }
+    }
+
+    /* * * * * * Sessions * * * * * */
+
+    /** Make a challenge for user: 1 if made, -1 for an unknown user,
+     * -2 if user is locked out, -3 if user has too many sessions open
+     * or has been issued too many challenges of late.
+     *
+     * out[0] receives the session, out[1] the bitplane.
+     */
+    final int
+    challenge(String user, Object[] out)
+    throws Exception
+    {
+        char[][] seeds = users.get(user);
+        if(seeds == null) {
+            return -1;
+        }
+
+        /* Count the session before making it, so that a burst of
+         * requests cannot all get past the limits at once */
+        Account a = accounts.get(user);
+        synchronized(a) {
+            long now = System.currentTimeMillis();
+            if(a.until > now) {
+                return -2;
+            }
+            if(now - a.window >= RATE_WINDOW) {
+                a.window = now;
+                a.issued = 0;
+            }
+            if(a.open >= maxopen || (rate > 0 && a.issued >= rate)) {
+                return -3;
+            }
+            a.open++;
+            a.issued++;
+        }
+
+        int[] plain = VCResponse.random(rng.get(), minevt);
+
+        VCTrace tr = VCTrace.begin("challenge " + user);
+        byte[] plane = null;
+        try {
+            plane = VCGenerator.generateChallengeBits(
+                                seeds[1], seeds[0], plain, format, null);
+        } finally {
+            VCTrace.detach(tr);
+            VCTrace.end(tr);
+            if(plane == null) {
+                synchronized(a) {
+                    a.open--;
+                }
+            }
+        }
+
+        byte[] sb = new byte[SESSION_BYTES];
+        rng.get().nextBytes(sb);
+        StringBuilder id = new StringBuilder();
+        for(int i = 0; i < sb.length; i++) {
+            id.append(Integer.toHexString((sb[i] & 0xFF) | 0x100)
+                             .substring(1));
+        }
+
+        sessions.put(id.toString(),
+                     new Session(user, VCResponse.encode(plain).toString(),
+                                 System.currentTimeMillis() + ttl));
+        out[0] = id.toString();
+        out[1] = plane;
+        return 1;
+    }
+
+    /* Count s, removed from sessions, as no longer open */
+    private void
+    ended(Session s) {
+        Account a = accounts.get(s.user);
+        synchronized(a) {
+            a.open--;
+        }
+    }
+
+    /** Check, and end, user's session: 1 if right, 0 if wrong, -1 if
+     * user has no such session, -2 if user is locked out.
+     */
+    final int
+    verify(String user, String id, String response) {
+        Session s = sessions.remove(id);
+        if(s == null) {
+            return -1;
+        }
+        ended(s);
+        if(s.expires < System.currentTimeMillis() || !s.user.equals(user)) {
+            return -1;
+        }
+        if(locked(user)) {
+            return -2;
+        }
+
+        boolean right;
+        try {
+            right = MessageDigest.isEqual(s.plain.getBytes("US-ASCII"),
+                                          response.getBytes("US-ASCII"));
+        } catch (java.io.UnsupportedEncodingException uee) {
+            throw new RuntimeException(uee);
+        }
+
+        Account a = accounts.get(user);
+        synchronized(a) {
+            if(right) {
+                a.fails = 0;
+                return 1;
+            }
+            if(++a.fails >= maxfails) {
+                a.fails = 0;
+                a.until = System.currentTimeMillis() + lockout;
+            }
+        }
+        return 0;
+    }
+
+    /** Whether user is locked out for wrong answers */
+    final boolean
+    locked(String user) {
+        Account a = accounts.get(user);
+        if(a == null) {
+            return false;
+        }
+        synchronized(a) {
+            return a.until > System.currentTimeMillis();
+        }
+    }
+
+    final boolean
+    full() {
+        return sessions.size() >= maxsessions;
+    }
+
+    /** Drop expired sessions */
+    final void
+    sweep() {
+        final long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String,Session>> i
+            = sessions.entrySet().iterator();
+        while(i.hasNext()) {
+            Map.Entry<String,Session> e = i.next();
+            /* Unless verify() got there first */
+            if(e.getValue().expires < now
+                    && sessions.remove(e.getKey(), e.getValue())) {
+                ended(e.getValue());
+            }
+        }
+    }
+
+    /* * * * * * HTTP * * * * * */
+
+    private static final void
+    reply(HttpExchange x, int code, String body)
+    throws IOException
+    {
+        byte[] b = body.getBytes("UTF-8");
+        x.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        x.sendResponseHeaders(code, b.length);
+        OutputStream os = x.getResponseBody();
+        os.write(b);
+        os.close();
+    }
+
+    /* Parameters from the query string and any form body */
+    private static final Map<String,String>
+    params(HttpExchange x)
+    throws IOException
+    {
+        Map<String,String> p = new HashMap<String,String>();
+        parse(x.getRequestURI().getRawQuery(), p);
+
+        String ct = x.getRequestHeaders().getFirst("Content-Type");
+        if(ct != null
+                && ct.startsWith("application/x-www-form-urlencoded")) {
+            InputStream is = x.getRequestBody();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] b = new byte[512];
+            int n;
+            while((n = is.read(b)) > 0 && bos.size() < MAX_FORM) {
+                bos.write(b, 0, n);
+            }
+            parse(bos.toString("US-ASCII"), p);
+        }
+        return p;
+    }
+
+    private static final void
+    parse(String q, Map<String,String> p)
+    throws IOException
+    {
+        if(q == null) {
+            return;
+        }
+        for(String kv : q.split("&")) {
+            int eq = kv.indexOf('=');
+            if(eq > 0) {
+                p.put(URLDecoder.decode(kv.substring(0, eq), "UTF-8"),
+                      URLDecoder.decode(kv.substring(eq+1), "UTF-8"));
+            }
+        }
+    }
+
+    private abstract static class Handler implements HttpHandler {
+        public final void
+        handle(HttpExchange x)
+        throws IOException
+        {
+            try {
+                if(!x.getRequestMethod().equals("POST")) {
+                    reply(x, 405, "POST only\n");
+                    return;
+                }
+                post(x, params(x));
+            } catch (Exception e) {
+                /* Details are for the log, not the client */
+                System.err.println("VCServer: " + x.getRequestMethod()
+                                   + " " + x.getRequestURI().getPath()
+                                   + ": " + e);
+                e.printStackTrace();
+                reply(x, 500, "Internal error\n");
+            } finally {
+                x.close();
+            }
+        }
+
+        abstract void post(HttpExchange x, Map<String,String> p)
+        throws Exception;
+    }
+
+    final HttpHandler
+    challengeHandler() {
+        return new Handler() {
+            void post(HttpExchange x, Map<String,String> p)
+            throws Exception
+            {
+                String user = p.get("user");
+                if(user == null) {
+                    reply(x, 400, "No user\n");
+                    return;
+                }
+                if(full()) {
+                    reply(x, 503, "Too many sessions\n");
+                    return;
+                }
+
+                Object[] res = new Object[2];
+                switch(challenge(user, res)) {
+                    case 1:  break;
+                    case -2: reply(x, 429, "Too many wrong answers\n");
+                             return;
+                    case -3: reply(x, 429, "Too many challenges\n");
+                             return;
+                    default: reply(x, 404, "No such user\n");   return;
+                }
+
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                VCSlideGen.writePlane(VCImageSink.open(
+                                        Channels.newChannel(bos),
+                                        VCImageSink.PBM_P4,
+                                        VCParameters.DISP_X,
+                                        VCParameters.DISP_Y),
+                                      (byte[]) res[1], false);
+
+                x.getResponseHeaders().set("Content-Type",
+                                           "image/x-portable-bitmap");
+                x.getResponseHeaders().set("X-VC-Session", (String) res[0]);
+                x.sendResponseHeaders(200, bos.size());
+                OutputStream os = x.getResponseBody();
+                bos.writeTo(os);
+                os.close();
+            }
+        };
+    }
+
+    final HttpHandler
+    verifyHandler() {
+        return new Handler() {
+            void post(HttpExchange x, Map<String,String> p)
+            throws Exception
+            {
+                String user = p.get("user");
+                String id = p.get("session");
+                String r = p.get("response");
+                if(user == null || id == null || r == null) {
+                    reply(x, 400, "Need user, session and response\n");
+                    return;
+                }
+
+                switch(verify(user, id, r)) {
+                    case 1:  reply(x, 200, "ok\n");              break;
+                    case 0:  reply(x, 403, "wrong\n");           break;
+                    case -2: reply(x, 429, "Too many wrong answers\n");
+                             break;
+                    default: reply(x, 404, "No such session\n"); break;
+                }
+            }
+        };
+    }
+
+    /* * * * * * Startup * * * * * */
+
+    /** Read "user TAB seeds" lines, skipping blanks and #comments */
+    static final Map<String,char[][]>
+    readUsers(String file)
+    throws IOException
+    {
+        Map<String,char[][]> us = new HashMap<String,char[][]>();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        String l;
+        int n = 0;
+        while((l = br.readLine()) != null) {
+            n++;
+            if(l.length() == 0 || l.startsWith("#")) {
+                continue;
+            }
+            int tab = l.indexOf('\t');
+            char[][] ds = null;
+            if(tab > 0) {
+                try {
+                    ds = VCSeedCodec.decode_seeds(
+                                CharBuffer.wrap(l, tab+1, l.length()));
+                } catch (RuntimeException re) {
+                    ds = null;
+                }
+            }
+            if(ds == null || ds[0].length == 0 || ds[1].length == 0) {
+                br.close();
+                throw new IOException(file + ":" + n + ": bad line");
+            }
+            us.put(l.substring(0, tab), ds);
+        }
+        br.close();
+        return us;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(cliopts, args);
+
+        if(cmd.hasOption(OPT_SV_HELP) || !cmd.hasOption(OPT_SV_USERS)) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp( "VCServer" , cliopts );
+            return;
+        }
+
+        Security.addProvider(VCCrypto.provider());
+
+        if(cmd.hasOption(OPT_SV_TRACE)) {
+            VCTrace.setSink(new VCTrace.Sink() {
+                public void report(VCTrace t) {
+                    System.err.println(t.toJson());
+                }
+            });
+        }
+
+        int format = VCCrypto.FORMAT_DEFAULT;
+        if(cmd.hasOption(OPT_SV_FORMAT)) {
+            String f = cmd.getOptionValue(OPT_SV_FORMAT);
+            format = VCSlideGen.parseFormat(f);
+            if(format < 0) {
+                System.err.println("Unknown format: " + f);
+                return;
+            }
+        }
+
+        int port = Integer.parseInt(cmd.getOptionValue(OPT_SV_PORT, "8080"));
+        String bind = cmd.getOptionValue(OPT_SV_BIND, "127.0.0.1");
+        int threads = Runtime.getRuntime().availableProcessors();
+        if(cmd.hasOption(OPT_SV_THREAD)) {
+            threads = Integer.parseInt(cmd.getOptionValue(OPT_SV_THREAD));
+        }
+        long ttl = 1000L * Long.parseLong(cmd.getOptionValue(OPT_SV_TTL,
+                                                             "120"));
+        if(ttl <= 0) {
+            System.err.println("TTL must be positive");
+            return;
+        }
+        int minevt = Integer.parseInt(cmd.getOptionValue(OPT_SV_MINEVT,
+                                                         "1"));
+        int maxses = Integer.parseInt(cmd.getOptionValue(OPT_SV_MAXSES,
+                                                         "100000"));
+        int maxfails = Integer.parseInt(cmd.getOptionValue(OPT_SV_FAILS,
+                                                           "5"));
+        long lockout = 1000L * Long.parseLong(cmd.getOptionValue(OPT_SV_LOCK,
+                                                                 "300"));
+        int maxopen = Integer.parseInt(cmd.getOptionValue(OPT_SV_OPEN, "4"));
+        if(maxopen <= 0) {
+            System.err.println("Users must be allowed a session");
+            return;
+        }
+        int rate = Integer.parseInt(cmd.getOptionValue(OPT_SV_RATE, "20"));
+
+        final VCServer vs = new VCServer(
+                                readUsers(cmd.getOptionValue(OPT_SV_USERS)),
+                                format, minevt, ttl, maxses,
+                                maxfails, lockout, maxopen, rate);
+
+        /* The caches' defaults are for a phone with one or two users.
+         * Each user has two seeds, so two keys and two streams'
+         * checkpoints, and one slide; tiles are not used here.
+         */
+        int cached = Math.min(vs.users.size(), MAX_CACHED);
+        if(cmd.hasOption(OPT_SV_CACHE)) {
+            cached = Integer.parseInt(cmd.getOptionValue(OPT_SV_CACHE));
+        }
+        cached = Math.max(cached, 1);
+        VCKeyCache.setSize(2*cached);
+        VCCheckpoints.setSize(2*cached);
+        VCSlideCache.setSize(cached);
+
+        /* Pick the keystream engine now rather than on a request */
+        VCKeystreamEngine.forFormat(format);
+
+        ScheduledExecutorService sweeper
+            = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "VCServer sweeper");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                vs.sweep();
+            }
+        }, ttl/2, ttl/2, TimeUnit.MILLISECONDS);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        HttpServer hs = HttpServer.create(new InetSocketAddress(bind, port),
+                                          0);
+        hs.createContext("/challenge", vs.challengeHandler());
+        hs.createContext("/verify", vs.verifyHandler());
+        hs.setExecutor(pool);
+        hs.start();
+
+        System.err.println("VCServer: " + vs.users.size() + " users on "
+                           + bind + ":" + port);
+    }
+}
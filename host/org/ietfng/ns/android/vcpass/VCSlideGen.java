@@ -14,12 +14,28 @@
 
 package org.ietfng.ns.android.vcpass;
 
-import org.ietfng.ns.android.vcpass.Utils;
+import org.ietfng.ns.android.vcpass.VCSeedCodec;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.Provider;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import javax.crypto.SecretKey;
 
 import com.google.zxing.BarcodeFormat;
@@ -49,25 +65,81 @@ public final class VCSlideGen {
     static final private String OPT_SS_VOCABS = "v";
     static final private String OPT_SS_GENEXV = "x";
     static final private String OPT_SS_GENEXC = "C";
+    static final private String OPT_SS_FORMAT = "F";
+    static final private String OPT_SS_ENGINE = "E";
+    static final private String OPT_SS_THREAD = "j";
+    static final private String OPT_SS_ASCII  = "A";
+    static final private String OPT_SS_BATCHU = "U";
+    static final private String OPT_SS_BATCHN = "N";
+    static final private String OPT_SS_OUTDIR = "o";
+    static final private String OPT_SS_TRACE  = "T";
+    static final private String OPT_SS_SEEDSF = "k";
+    static final private String OPT_SS_DAEMON = "D";
+    static final private String OPT_SS_COMPACT = "z";
+
+    static final private String MANIFEST = "manifest.tsv";
 
     private static final int crpix = VCParameters.DISP_X
                                    / VCParameters.GRID_X;
     private static final int ccpix = VCParameters.DISP_Y
                                    / VCParameters.GRID_Y;
 
+    /* Whether display row or column n carries a grid line in examples */
+    private static final boolean
+    isGridLine(int n) {
+        return (n%crpix == crpix-1 && n < VCParameters.DISP_X-1)
+            || (n%crpix == 0 && n > 0);
+    }
+
+    /** Stream a bitplane out a row at a time, optionally inverted */
+    static final void
+    writePlane(VCImageSink out, byte[] plane, boolean invert)
+    throws java.io.IOException
+    {
+        byte[] row = new byte[VCGenerator.dispRowBytes];
+        for(int r = 0; r < VCParameters.DISP_Y; r++) {
+            VCGenerator.bitsToRow(plane, r, row);
+            if(invert) {
+                for(int i = 0; i < row.length; i++) {
+                    row[i] = (byte)~row[i];
+                }
+            }
+            out.row(row);
+        }
+        out.close();
+    }
+
+    /** Stream out a slide stacked on a vocabulary plane, with the
+     * cell grid drawn in black.
+     */
     private static final void
-    printPBMHeader(FileWriter f, int v, int x, int y) 
+    writeOverlay(VCImageSink out, byte[] slide, byte[] vocab)
     throws java.io.IOException
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append("P");
-        sb.append(v);
-        sb.append(" ");
-        sb.append(x);
-        sb.append(" ");
-        sb.append(y);
-        sb.append("\n");
-        f.write(sb.toString(), 0, sb.length());
+        byte[] grid = new byte[VCGenerator.dispRowBytes];
+        for(int c = 0; c < VCParameters.DISP_X; c++) {
+            if(isGridLine(c)) {
+                grid[c/8] |= 0x80 >> (c%8);
+            }
+        }
+
+        byte[] srow = new byte[VCGenerator.dispRowBytes];
+        byte[] vrow = new byte[VCGenerator.dispRowBytes];
+        for(int r = 0; r < VCParameters.DISP_Y; r++) {
+            if(isGridLine(r)) {
+                for(int i = 0; i < vrow.length; i++) {
+                    vrow[i] = (byte)0xFF;
+                }
+            } else {
+                VCGenerator.bitsToRow(slide, r, srow);
+                VCGenerator.bitsToRow(vocab, r, vrow);
+                for(int i = 0; i < vrow.length; i++) {
+                    vrow[i] |= srow[i] | grid[i];
+                }
+            }
+            out.row(vrow);
+        }
+        out.close();
     }
 
     static {
@@ -88,6 +160,28 @@ public final class VCSlideGen {
                             "Vocabulary PNM file basename (devel)");
         cliopts.addOption(OPT_SS_GENEXC, "chalfile", true,
                             "Example solved challenge file basename (devel)");
+        cliopts.addOption(OPT_SS_FORMAT, "format", true,
+                            "Keystream format: cfb8 (default), ctr or chacha20");
+        cliopts.addOption(OPT_SS_ENGINE, "engine", true,
+                            "Keystream engine (default: fastest found)");
+        cliopts.addOption(OPT_SS_THREAD, "threads", true,
+                            "Generator threads (default: one per CPU)");
+        cliopts.addOption(OPT_SS_ASCII, "ascii", false,
+                            "Write plain (P1) rather than raw (P4) PBM");
+        cliopts.addOption(OPT_SS_BATCHU, "users", true,
+                            "Batch: enroll user IDs listed in file (- for stdin)");
+        cliopts.addOption(OPT_SS_BATCHN, "count", true,
+                            "Batch: enroll this many numbered users");
+        cliopts.addOption(OPT_SS_OUTDIR, "outdir", true,
+                            "Batch: output directory (default .)");
+        cliopts.addOption(OPT_SS_SEEDSF, "seedfile", true,
+                            "Batch: also write user TAB seeds lines, for VCServer");
+        cliopts.addOption(OPT_SS_TRACE, "trace", false,
+                            "Print generation traces to stderr as JSON");
+        cliopts.addOption(OPT_SS_COMPACT, "compact", false,
+                            "Random seeds of octets, in the compact binary form");
+        cliopts.addOption(OPT_SS_DAEMON, "daemon", false,
+                            "Take jobs from stdin, one per line; see daemon()");
     }
 
 	private static char[] randChars(SecureRandom sr, int size) {
@@ -109,17 +203,267 @@ public final class VCSlideGen {
 		return sb.toString().toCharArray();
 	}
 
-    public static void main(String[] args) throws Exception {
-        CommandLineParser parser = new PosixParser();
-        CommandLine cmd = parser.parse(cliopts, args);
+    /** Where fresh seeds come from: the system's RNG or, given -R
+     * (devel), a SHA1PRNG seeded with nothing else, so that the same
+     * -R gives the same seeds every time.
+     */
+    private static final SecureRandom
+    seedSource(CommandLine cmd)
+    throws GeneralSecurityException, java.io.IOException
+    {
+        if(!cmd.hasOption(OPT_SS_PRNGSD)) {
+            // sr will initialize from the system's RNG when
+            // we first pull some data out of it.
+            return new SecureRandom();
+        }
+        System.err.println("WARN: Using given seed.");
+        /* Seeded before first use, this replaces its own seeding; a
+         * plain SecureRandom would only mix ours into the system's */
+        SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
+        sr.setSeed(cmd.getOptionValue(OPT_SS_PRNGSD).getBytes("UTF-8"));
+        return sr;
+    }
 
-        if(cmd.hasOption(OPT_SS_HELP) || args.length == 0) {
-            HelpFormatter formatter = new HelpFormatter();
-            formatter.printHelp( "VCSlideGen" , cliopts );
-            return;
-        } 
+    /** A fresh seed: SEED_SIZE printable characters or, if compact,
+     * VCSeedCodec.SEED_OCTETS octets.
+     */
+    private static final char[]
+    randSeed(SecureRandom sr, boolean compact) {
+        if(!compact) {
+            return randChars(sr, SEED_SIZE);
+        }
+        byte[] b = new byte[VCSeedCodec.SEED_OCTETS];
+        sr.nextBytes(b);
+        char[] c = VCSeedCodec.seedChars(b);
+        Arrays.fill(b, (byte)0);
+        return c;
+    }
+
+    /** The seed pair as the QR code and seed files carry it */
+    private static final char[]
+    seedPayload(char[] useed, char[] vseed, int format, boolean compact) {
+        return compact
+             ? VCSeedCodec.encode_seeds_binary_chars(useed, vseed, format)
+             : VCSeedCodec.encode_seeds_chars(useed, vseed);
+    }
 
-        Security.addProvider(VCParameters.CSPROV);
+    /** The VCCrypto.FORMAT_* named by a -F argument, or -1 */
+    static final int
+    parseFormat(String f) {
+        if(f.equals("cfb8")) {
+            return VCCrypto.FORMAT_CFB8;
+        } else if(f.equals("ctr")) {
+            return VCCrypto.FORMAT_CTR;
+        } else if(f.equals("chacha20")) {
+            return VCCrypto.FORMAT_CHACHA20;
+        }
+        return -1;
+    }
+
+    /** Render the seed pair as a QR code */
+    private static final void
+    writeQR(VCImageSink out, char[] encodedseeds)
+    throws Exception
+    {
+        /* zxing will have nothing but a String */
+        ByteMatrix qrbm = new MultiFormatWriter().encode(
+            new String(encodedseeds),
+            BarcodeFormat.QR_CODE,
+            QR_SIZEX, QR_SIZEY);
+        byte[][] qr = qrbm.getArray();
+        byte[] qrrow = new byte[(QR_SIZEX+7)/8];
+        for(int x = 0; x < qr.length; x++) {
+            for(int i = 0; i < qrrow.length; i++) {
+                qrrow[i] = 0;
+            }
+            for(int y = 0; y < qr[x].length; y++) {
+                /* Matrix is 0 for black, all ones for white */
+                if((qr[x][y] & 0x1) == 0) {
+                    qrrow[y/8] |= 0x80 >> (y%8);
+                }
+            }
+            out.row(qrrow);
+        }
+        out.close();
+    }
+
+    /** Read user IDs, one per line, ignoring blank lines */
+    private static final List<String>
+    readUsers(String file)
+    throws java.io.IOException
+    {
+        Reader r = file.equals("-") ? new InputStreamReader(System.in)
+                                    : new FileReader(file);
+        BufferedReader br = new BufferedReader(r);
+        List<String> users = new ArrayList<String>();
+        String l;
+        while((l = br.readLine()) != null) {
+            l = l.trim();
+            if(l.length() > 0) {
+                users.add(l);
+            }
+        }
+        br.close();
+        return users;
+    }
+
+    /**
+     * Enroll many users in one run: for each, fresh seeds, a QR code
+     * and a slide, named by position in the batch.  A manifest of
+     * "user TAB qrfile TAB slidefile" lines, in input order, records
+     * which files belong to whom; users that fail are reported and
+     * left out of it.  If seedfile is given, it gets "user TAB seeds"
+     * lines for the same users, seeds as in the QR codes,
+     * which is what VCServer reads.
+     *
+     * Seeds are drawn in order on this thread, so a given -R seed
+     * (see seedSource) still reproduces the whole batch; the
+     * rendering, which is the expensive part, is spread over the pool
+     * a user at a time.  Each user's seeds are wiped once written.
+     *
+     * Returns the number of failures.
+     */
+    private static final int
+    batchEnroll(final File outdir,
+                final List<String> users,
+                final SecureRandom sr,
+                final int format,
+                final int pbm,
+                final ExecutorService pool,
+                final File seedfile,
+                final boolean compact)
+    throws Exception
+    {
+        List<Future<String>> fs = new ArrayList<Future<String>>();
+        List<char[]> seeds = new ArrayList<char[]>();
+
+        for(int n = 0; n < users.size(); n++) {
+            final String user = users.get(n);
+            final char[] useed = randSeed(sr, compact);
+            final char[] vseed = randSeed(sr, compact);
+            final char[] payload = seedPayload(useed, vseed, format, compact);
+            final String base = String.format("%06d", n);
+            seeds.add(payload);
+
+            Callable<String> job = new Callable<String>() {
+                public String call() throws Exception {
+                    VCTrace tr = VCTrace.begin("enroll " + base);
+                    try {
+                        return enroll();
+                    } finally {
+                        VCTrace.detach(tr);
+                        VCTrace.end(tr);
+                        Arrays.fill(useed, '\0');
+                        Arrays.fill(vseed, '\0');
+                    }
+                }
+
+                private String enroll() throws Exception {
+                    String qrf = base + "-qr.pbm";
+                    String slf = base + "-slide.pbm";
+
+                    writeQR(VCImageSink.open(
+                                new File(outdir, qrf).getPath(),
+                                pbm, QR_SIZEX, QR_SIZEY),
+                            payload);
+
+                    /* Cells stay sequential; users are the parallelism */
+                    byte[] slide = VCGenerator.generateSlideBits(
+                                        useed, format, null, null);
+                    writePlane(VCImageSink.open(
+                                    new File(outdir, slf).getPath(),
+                                    pbm, VCParameters.DISP_X,
+                                         VCParameters.DISP_Y),
+                               slide, false);
+
+                    return user + "\t" + qrf + "\t" + slf + "\n";
+                }
+            };
+
+            if(pool != null) {
+                fs.add(pool.submit(job));
+            } else {
+                FutureTask<String> ft = new FutureTask<String>(job);
+                ft.run();
+                fs.add(ft);
+            }
+        }
+
+        int failed = 0;
+        BufferedWriter mf = new BufferedWriter(
+                                new FileWriter(new File(outdir, MANIFEST)));
+        BufferedWriter sf = (seedfile == null) ? null
+                          : new BufferedWriter(new FileWriter(seedfile));
+        for(int n = 0; n < fs.size(); n++) {
+            try {
+                mf.write(fs.get(n).get());
+                if(sf != null) {
+                    sf.write(users.get(n) + "\t");
+                    sf.write(seeds.get(n));
+                    sf.write("\n");
+                }
+            } catch (ExecutionException ee) {
+                failed++;
+                System.err.println("Failed to enroll " + users.get(n)
+                                   + ": " + ee.getCause());
+            }
+            Arrays.fill(seeds.get(n), '\0');
+        }
+        mf.close();
+        if(sf != null) {
+            sf.close();
+        }
+
+        return failed;
+    }
+
+    /**
+     * Run one job, as described by cmd: a batch enrollment, or
+     * whichever of the single-user outputs it names.  Trouble the
+     * caller should hear about is thrown as IllegalArgumentException.
+     *
+     * Returns a line about what was done: the number of users
+     * enrolled, or the seeds used, as the QR code carries them.
+     *
+     * An engine given with -E is used for this job only; the one in
+     * use before is put back after, so that in a daemon it does not
+     * carry over to later jobs.
+     */
+    private static final String
+    job(CommandLine cmd, ExecutorService pool)
+    throws Exception
+    {
+        int format = VCCrypto.FORMAT_DEFAULT;
+        if(cmd.hasOption(OPT_SS_FORMAT)) {
+            String f = cmd.getOptionValue(OPT_SS_FORMAT);
+            format = parseFormat(f);
+            if(format < 0) {
+                throw new IllegalArgumentException("Unknown format: " + f);
+            }
+        }
+
+        if(!cmd.hasOption(OPT_SS_ENGINE)) {
+            return job(cmd, format, pool);
+        }
+
+        String e = cmd.getOptionValue(OPT_SS_ENGINE);
+        VCKeystreamEngine eng = VCKeystreamEngine.named(e);
+        if(eng == null || eng.format != format) {
+            throw new IllegalArgumentException(
+                            "No engine " + e + " for that format");
+        }
+        VCKeystreamEngine prev = VCKeystreamEngine.use(format, eng);
+        try {
+            return job(cmd, format, pool);
+        } finally {
+            VCKeystreamEngine.use(format, prev);
+        }
+    }
+
+    private static final String
+    job(CommandLine cmd, int format, ExecutorService pool)
+    throws Exception
+    {
 
         char[] useed = null;
         if(cmd.hasOption(OPT_SS_SECRET)) {
@@ -131,154 +475,150 @@ public final class VCSlideGen {
             vseed = cmd.getOptionValue(OPT_SS_VOCSEC).toCharArray();
         }
 
-		if(useed == null || vseed == null)
-        {        
-            SecureRandom sr = new SecureRandom();
-            if(cmd.hasOption(OPT_SS_PRNGSD)) {
-                System.err.println("WARN: Using given seed.");
-                sr.setSeed(cmd.getOptionValue(OPT_SS_PRNGSD)
-                              .getBytes("UTF-8"));
+        final int pbm = cmd.hasOption(OPT_SS_ASCII)
+                      ? VCImageSink.PBM_P1 : VCImageSink.PBM_P4;
+        final boolean compact = cmd.hasOption(OPT_SS_COMPACT);
+
+        if(cmd.hasOption(OPT_SS_BATCHU) || cmd.hasOption(OPT_SS_BATCHN)) {
+            List<String> users;
+            if(cmd.hasOption(OPT_SS_BATCHU)) {
+                users = readUsers(cmd.getOptionValue(OPT_SS_BATCHU));
             } else {
-                // sr will initialize from the system's RNG when
-                // we first pull some data out of it.
+                int count = Integer.parseInt(
+                                cmd.getOptionValue(OPT_SS_BATCHN));
+                users = new ArrayList<String>(count);
+                for(int n = 0; n < count; n++) {
+                    users.add(String.format("user%06d", n));
+                }
+            }
+
+            File outdir = new File(cmd.getOptionValue(OPT_SS_OUTDIR, "."));
+            if(!outdir.isDirectory() && !outdir.mkdirs()) {
+                throw new IllegalArgumentException("Cannot create " + outdir);
+            }
+
+            SecureRandom sr = seedSource(cmd);
+
+            File seedfile = cmd.hasOption(OPT_SS_SEEDSF)
+                          ? new File(cmd.getOptionValue(OPT_SS_SEEDSF)) : null;
+            int failed = batchEnroll(outdir, users, sr, format, pbm, pool,
+                                     seedfile, compact);
+            if(failed > 0) {
+                throw new IllegalArgumentException(failed + " of "
+                                    + users.size() + " users failed");
             }
-			if(useed == null) useed = randChars(sr, SEED_SIZE);
-			if(vseed == null) vseed = randChars(sr, SEED_SIZE);
+            return users.size() + " enrolled";
+        }
+
+		if(useed == null || vseed == null)
+        {
+            SecureRandom sr = seedSource(cmd);
+			if(useed == null) useed = randSeed(sr, compact);
+			if(vseed == null) vseed = randSeed(sr, compact);
+        }
+        char[] payload = seedPayload(useed, vseed, format, compact);
+
+        VCTrace tr = VCTrace.begin("run");
+        try {
+            render(cmd, useed, vseed, payload, format, pbm, pool);
+            return new String(payload);
+        } finally {
+            VCTrace.detach(tr);
+            VCTrace.end(tr);
+            Arrays.fill(payload, '\0');
+            Arrays.fill(useed, '\0');
+            Arrays.fill(vseed, '\0');
         }
+    }
 
+    /** Write whichever single-user outputs cmd asks for */
+    private static final void
+    render(CommandLine cmd, char[] useed, char[] vseed, char[] payload,
+           int format, int pbm, ExecutorService pool)
+    throws Exception
+    {
         if(cmd.hasOption(OPT_SS_QRFILE)) {
-            String encodedseeds = Utils.encode_seeds(useed, vseed);
-            FileWriter qrout    = new FileWriter(
-                                     cmd.getOptionValue(OPT_SS_QRFILE)
-                                    +".pbm"
-                                  );
-            printPBMHeader(qrout, 1, QR_SIZEX, QR_SIZEY);
-            ByteMatrix qrbm = new MultiFormatWriter().encode(
-                encodedseeds,
-                BarcodeFormat.QR_CODE,
-                QR_SIZEX, QR_SIZEY);
-            byte[][] qr = qrbm.getArray();
-            for(int x = 0; x < qr.length; x++) {
-                for(int y = 0; y < qr[x].length; y++) {
-                    qrout.write('1' - (qr[x][y] & 0x1));
-                }
-                qrout.write('\n');
-            }
-            qrout.flush();
-            qrout.close();
+            writeQR(VCImageSink.open(cmd.getOptionValue(OPT_SS_QRFILE)
+                                    +".pbm",
+                                    pbm, QR_SIZEX, QR_SIZEY),
+                    payload);
         }
 
         if(cmd.hasOption(OPT_SS_SLIDEF)) {
-            FileWriter sout    = new FileWriter(
+            VCImageSink sout = VCImageSink.open(
                                     cmd.getOptionValue(OPT_SS_SLIDEF)
-                                   +".pbm"
+                                   +".pbm",
+                                   pbm, VCParameters.DISP_X,
+                                        VCParameters.DISP_Y
                                  );
-            printPBMHeader(sout, 1, VCParameters.DISP_X,
-                                    VCParameters.DISP_Y);
 
-            Integer[][] slide = VCGenerator.generateSlide(useed, null);
+            byte[] slide = VCGenerator.generateSlideBits(useed, format, pool, null);
 
-            int[][] pixels = VCGenerator.vcArrayToPixels(slide);
-            for(int r = 0; r < pixels.length; r++) {
-                for(int c = 0; c < pixels[r].length; c++) {
-                    sout.write(pixels[r][c] == VCParameters.white ?
-                                '0' : '1');
-                }
-                sout.write('\n');
-            }
-            sout.flush();
-            sout.close();
+            writePlane(sout, slide, false);
         }
 
         if(cmd.hasOption(OPT_SS_VOCABS)) {
             int[] plain = new int[VCParameters.GRID_X
                                  *VCParameters.GRID_Y];
             for(int i = 0; i < VCParameters.VCVOC_SIZE; i++) {
-                FileWriter vout    = new FileWriter(
+                VCImageSink vout = VCImageSink.open(
                                      cmd.getOptionValue(OPT_SS_VOCABS)
                                      +"-"
                                      +Integer.toString(i)
-                                     +".pbm"
+                                     +".pbm",
+                                     pbm, VCParameters.DISP_X,
+                                          VCParameters.DISP_Y
                                    );
-                printPBMHeader(vout, 1, VCParameters.DISP_X,
-                                        VCParameters.DISP_Y);
 
                 for(int j = 0; j < plain.length; j++) {
                     plain[j] = i;
                 }
 
-                Integer[][] vocab = VCGenerator.generateChallenge(
-                                        vseed, useed, plain, null
+                byte[] vocab = VCGenerator.generateChallengeBits(
+                                        vseed, useed, plain, format, pool, null
                                     );
-                int[][] pixels = VCGenerator.vcArrayToPixels(vocab);
-                for(int r = 0; r < pixels.length; r++) {
-                    for(int c = 0; c < pixels[r].length; c++) {
-                        vout.write(pixels[r][c] == VCParameters.white ?
-                                    '1' : '0');
-                    }
-                    vout.write('\n');
-                }
-                vout.flush();
-                vout.close();
+                /* Vocabulary sheets are printed white-on-black */
+                writePlane(vout, vocab, true);
             }
         }
 
         if(cmd.hasOption(OPT_SS_GENEXV)) {
     		int cells = VCParameters.GRID_X
                                    * VCParameters.GRID_Y;
-            Integer[][] vocab = new Integer[cells][];
-            Integer[][] vslide = new Integer[cells][];
+            final int cellbytes = VCGenerator.cellbytes;
+            byte[] vocab = new byte[cells*cellbytes];
+            byte[] vslide = new byte[cells*cellbytes];
 
             {
-                Integer[][] slide = VCGenerator.generateSlide( useed, null );
-                for(int i = 0; i < vslide.length; i++) {
-                    vslide[i] = slide[0];
+                byte[] slide = VCGenerator.generateSlideBits( useed, format, pool, null );
+                for(int i = 0; i < cells; i++) {
+                    System.arraycopy(slide, 0,
+                                     vslide, i*cellbytes, cellbytes);
                 }
             }
 
-            for(int i = 0; i < vocab.length; i++) {
+            for(int i = 0; i < cells; i++) {
                 int[] plain = new int[VCParameters.GRID_X
                                      *VCParameters.GRID_Y];
-                plain[0] = i;
+                /* There are more cells than entries; repeat them */
+                plain[0] = i % VCParameters.VCVOC_SIZE;
 
-                Integer[][] vocabi = VCGenerator.generateChallenge(
-                                        vseed, useed, plain, null
+                byte[] vocabi = VCGenerator.generateChallengeBits(
+                                        vseed, useed, plain, format, pool, null
                                     );
            
-                vocab[i] = vocabi[0];
+                System.arraycopy(vocabi, 0,
+                                 vocab, i*cellbytes, cellbytes);
             }
 
-            FileWriter vout    = new FileWriter(
+            VCImageSink vout = VCImageSink.open(
                                  cmd.getOptionValue(OPT_SS_GENEXV)
-								 + ".pbm"
+								 + ".pbm",
+                                 pbm, VCParameters.DISP_X,
+                                      VCParameters.DISP_Y
                                );
-            printPBMHeader(vout, 1, VCParameters.DISP_X,
-                                    VCParameters.DISP_Y);
 
-            int[][] spixels = VCGenerator.vcArrayToPixels(vslide);
-            int[][] vpixels = VCGenerator.vcArrayToPixels(vocab);
-  
-            for(int i = crpix-1; i < VCParameters.DISP_X-1; i += crpix){
-            for(int r = 0; r < vpixels.length; r++) {
-                vpixels[i][r] = VCParameters.black;
-                vpixels[i+1][r] = VCParameters.black;
-                vpixels[r][i] = VCParameters.black;
-                vpixels[r][i+1] = VCParameters.black;
-            }}
- 
-            for(int r = 0; r < vpixels.length; r++) {
-                for(int c = 0; c < vpixels[r].length; c++) {
-                    if(spixels[r][c] == VCParameters.black) {
-                         vout.write('1');
-                    } else {
-                         vout.write(vpixels[r][c] == VCParameters.white ?
-                                '0' : '1');
-                    }
-                }
-                vout.write('\n');
-            }
-            vout.flush();
-            vout.close();
+            writeOverlay(vout, vslide, vocab);
         }
 
         if(cmd.hasOption(OPT_SS_GENEXC)) {
@@ -287,43 +627,128 @@ public final class VCSlideGen {
             for(int i = 0; i < plain.length; i++ ){
                 plain[i] = (i*7+8) % VCParameters.VCVOC_SIZE;
             }
-            FileWriter vout    = new FileWriter(
+            VCImageSink vout = VCImageSink.open(
                                  cmd.getOptionValue(OPT_SS_GENEXC)
-								 + ".pbm"
+								 + ".pbm",
+                                 pbm, VCParameters.DISP_X,
+                                      VCParameters.DISP_Y
                                );
-            printPBMHeader(vout, 1, VCParameters.DISP_X,
-                                    VCParameters.DISP_Y);
   
-            Integer[][] vocab = VCGenerator.generateChallenge(
-                                    vseed, useed, plain, null
+            byte[] vocab = VCGenerator.generateChallengeBits(
+                                    vseed, useed, plain, format, pool, null
                                 );
-            int[][] vpixels = VCGenerator.vcArrayToPixels(vocab);
-  
-            Integer[][] slide = VCGenerator.generateSlide( useed, null );
-            int[][] spixels = VCGenerator.vcArrayToPixels(slide);
-  
-            for(int i = crpix-1; i < VCParameters.DISP_X-1; i += crpix){
-            for(int r = 0; r < vpixels.length; r++) {
-                vpixels[i][r] = VCParameters.black;
-                vpixels[i+1][r] = VCParameters.black;
-                vpixels[r][i] = VCParameters.black;
-                vpixels[r][i+1] = VCParameters.black;
-            }}
- 
-            for(int r = 0; r < vpixels.length; r++) {
-                for(int c = 0; c < vpixels[r].length; c++) {
-                    if(spixels[r][c] == VCParameters.black) {
-                         vout.write('1');
-                    } else {
-                         vout.write(vpixels[r][c] == VCParameters.white ?
-                                '0' : '1');
+            byte[] slide = VCGenerator.generateSlideBits( useed, format, pool, null );
+
+            writeOverlay(vout, slide, vocab);
+        }
+    }
+
+    /**
+     * Serve jobs from stdin until it closes, so that the provider,
+     * the key and slide caches and the JIT's work outlive any one
+     * job.  Each line is a job ID and then VCSlideGen arguments, all
+     * separated by tabs (seeds never contain one); each gets, in
+     * order, one line on stdout:
+     *
+     *      ID TAB "ok" TAB result of job()
+     *      ID TAB "error" TAB message
+     *
+     * Jobs run one at a time, each spreading its cells over pool.
+     * Options that belong to the process (PROCESS_OPTS) are refused
+     * in a job, as is "-" for any option that would take it to mean
+     * stdin (STDIN_OPTS), since stdin is where the jobs come from.
+     */
+    /* Set once for the whole process, so meaningless in a job */
+    private static final String[] PROCESS_OPTS
+        = { OPT_SS_TRACE, OPT_SS_THREAD, OPT_SS_DAEMON };
+    /* Read from stdin if given "-" */
+    private static final String[] STDIN_OPTS
+        = { OPT_SS_BATCHU };
+
+    private static final void
+    daemon(ExecutorService pool)
+    throws java.io.IOException
+    {
+        CommandLineParser parser = new PosixParser();
+        BufferedReader in = new BufferedReader(
+                                new InputStreamReader(System.in, "UTF-8"));
+        String l;
+        while((l = in.readLine()) != null) {
+            if(l.length() == 0) {
+                continue;
+            }
+            String[] f = l.split("\t");
+            String[] jargs = new String[f.length - 1];
+            System.arraycopy(f, 1, jargs, 0, jargs.length);
+
+            String res;
+            try {
+                CommandLine jcmd = parser.parse(cliopts, jargs);
+                for(String o : PROCESS_OPTS) {
+                    if(jcmd.hasOption(o)) {
+                        throw new IllegalArgumentException(
+                                "-" + o + " is not a per-job option");
+                    }
+                }
+                for(String o : STDIN_OPTS) {
+                    if("-".equals(jcmd.getOptionValue(o))) {
+                        throw new IllegalArgumentException(
+                                "-" + o + " cannot read stdin in a job");
                     }
                 }
-                vout.write('\n');
+                res = "ok\t" + job(jcmd, pool);
+            } catch (Exception e) {
+                res = "error\t" + (e instanceof IllegalArgumentException
+                                    ? e.getMessage() : e.toString());
             }
-            vout.flush();
-            vout.close();
+            System.out.println(f[0] + "\t" + res.replace('\n', ' '));
+            System.out.flush();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(cliopts, args);
+
+        if(cmd.hasOption(OPT_SS_HELP) || args.length == 0) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp( "VCSlideGen" , cliopts );
+            return;
         }
 
+        Security.addProvider(VCCrypto.provider());
+
+        if(cmd.hasOption(OPT_SS_TRACE)) {
+            VCTrace.setSink(new VCTrace.Sink() {
+                public void report(VCTrace t) {
+                    System.err.println(t.toJson());
+                }
+            });
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if(cmd.hasOption(OPT_SS_THREAD)) {
+            threads = Integer.parseInt(cmd.getOptionValue(OPT_SS_THREAD));
+        }
+        ExecutorService pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+        boolean ok = true;
+        try {
+            if(cmd.hasOption(OPT_SS_DAEMON)) {
+                daemon(pool);
+            } else {
+                job(cmd, pool);
+            }
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            ok = false;
+        } finally {
+            if(pool != null) {
+                pool.shutdown();
+            }
+        }
+        if(!ok) {
+            System.exit(1);
+        }
     }
 }
@@ -0,0 +1,421 @@
+/** Host-side challenge solver.
+ *
+ * Required classpath entries are as for VCServer.
+ *
+ * Build with:
+ *      javac -d bin/classes -cp bin/classes:... \
+ *            host/org/ietfng/ns/android/vcpass/VCSolver.java
+ *
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+/*
+ * Reads challenges back: given a user's slide and a challenge, as
+ * bitplanes, each cell is checked against every distinguished entry's
+ * part of the slide (see VCGenerator.maskCell).  Where the challenge
+ * shows an entry, those pixels are the slide's exactly; anywhere else
+ * they agree only by chance, about half the time.  The answer comes
+ * out as VCResponse.encode writes it.
+ *
+ * From the command line it will
+ *      solve one challenge:        -s slide.pbm -c challenge.pbm
+ *      check generated challenges: -u seeds -n count
+ *      drive a VCServer:           -u seeds -n count -S http://host:port
+ * where seeds is a "user TAB seeds" file as VCSlideGen -k writes.  A
+ * VCServer being driven this hard wants its per-user limits lifted,
+ * with -r 0 and -s at least the threads here.
+ */
+public final class VCSolver {
+
+    static final private Options cliopts = new Options();
+    static final private String OPT_SO_HELP   = "h";
+    static final private String OPT_SO_SLIDE  = "s";
+    static final private String OPT_SO_CHAL   = "c";
+    static final private String OPT_SO_USERS  = "u";
+    static final private String OPT_SO_COUNT  = "n";
+    static final private String OPT_SO_SERVER = "S";
+    static final private String OPT_SO_FORMAT = "F";
+    static final private String OPT_SO_THREAD = "j";
+    static final private String OPT_SO_MINEVT = "m";
+
+    static {
+        cliopts.addOption(OPT_SO_HELP, "help", false, "Show this help");
+        cliopts.addOption(OPT_SO_SLIDE, "slidefile", true,
+                            "Slide PBM file");
+        cliopts.addOption(OPT_SO_CHAL, "chalfile", true,
+                            "Challenge PBM file to solve");
+        cliopts.addOption(OPT_SO_USERS, "users", true,
+                            "File of user TAB seeds lines");
+        cliopts.addOption(OPT_SO_COUNT, "count", true,
+                            "Challenges to check or solve (default 1000)");
+        cliopts.addOption(OPT_SO_SERVER, "server", true,
+                            "VCServer base URL to authenticate against");
+        cliopts.addOption(OPT_SO_FORMAT, "format", true,
+                            "Keystream format: cfb8 (default), ctr or chacha20");
+        cliopts.addOption(OPT_SO_THREAD, "threads", true,
+                            "Worker threads (default: one per CPU)");
+        cliopts.addOption(OPT_SO_MINEVT, "minevents", true,
+                            "Distinguished cells per checked challenge (default 1)");
+    }
+
+    private static final int cells = VCParameters.GRID_X
+                                   * VCParameters.GRID_Y;
+
+        /* A cell shows entry p if no more than 1/MISMATCH_FRAC of the
+         * pixels p owns disagree with the slide. */
+    private static final int MISMATCH_FRAC = 8;
+    private static final int[] maskSizes
+        = new int[VCParameters.VCVOC_DISTINGUISHED+1];
+    static {
+        for(int p = 0; p < maskSizes.length; p++) {
+            maskSizes[p] = VCGenerator.maskSize(p);
+        }
+    }
+
+    private VCSolver() { }
+
+    /** The answer to chal under slide, as VCResponse.encode */
+    static final StringBuilder
+    solve(byte[] slide, byte[] chal) {
+        assert(slide.length == cells*VCGenerator.cellbytes);
+        assert(chal.length == cells*VCGenerator.cellbytes);
+
+        int[] ans = new int[cells];
+        for(int i = 0; i < cells; i++) {
+            ans[i] = -1;
+            /* Of those that qualify, the least mismatched by fraction */
+            int bd = 0, bn = 1;
+            for(int p = 0; p <= VCParameters.VCVOC_DISTINGUISHED; p++) {
+                int d = VCGenerator.maskMismatch(chal, i, p,
+                                        slide, i*VCGenerator.cellbytes);
+                int n = maskSizes[p];
+                if(d*MISMATCH_FRAC > n) {
+                    continue;
+                }
+                if(ans[i] < 0 || d*bn < bd*n) {
+                    ans[i] = p;
+                    bd = d;
+                    bn = n;
+                }
+            }
+        }
+        return VCResponse.encode(ans);
+    }
+
+    /** The answer to a challenge in VCGenerator.generateChallenge form */
+    static final StringBuilder
+    solve(byte[] slide, Integer[][] chal) {
+        return solve(slide, VCGenerator.vcArrayToBits(chal));
+    }
+
+    /* * * * * * PBM input * * * * * */
+
+    /* The next header token, skipping whitespace and #comments */
+    private static final String
+    token(InputStream is)
+    throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = is.read()) >= 0) {
+            if(c == '#') {
+                while((c = is.read()) >= 0 && c != '\n') { }
+            } else if(Character.isWhitespace(c)) {
+                if(sb.length() > 0) {
+                    break;
+                }
+            } else {
+                sb.append((char)c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Read a DISP_X by DISP_Y PBM (P1 or P4) back into a bitplane,
+     * as VCSlideGen.writePlane wrote it.  Does not close is.
+     */
+    static final byte[]
+    readPlane(InputStream is)
+    throws IOException
+    {
+        String magic = token(is);
+        int w = Integer.parseInt(token(is));
+        int h = Integer.parseInt(token(is));
+        if(w != VCParameters.DISP_X || h != VCParameters.DISP_Y
+                || !(magic.equals("P1") || magic.equals("P4"))) {
+            throw new IOException("Not a " + VCParameters.DISP_X + "x"
+                                  + VCParameters.DISP_Y + " PBM");
+        }
+
+        byte[] plane = new byte[cells*VCGenerator.cellbytes];
+        byte[] row = new byte[VCGenerator.dispRowBytes];
+        for(int r = 0; r < h; r++) {
+            if(magic.equals("P4")) {
+                int o = 0;
+                while(o < row.length) {
+                    int n = is.read(row, o, row.length - o);
+                    if(n < 0) {
+                        throw new IOException("Short PBM");
+                    }
+                    o += n;
+                }
+            } else {
+                for(int i = 0; i < row.length; i++) {
+                    row[i] = 0;
+                }
+                for(int x = 0; x < w; ) {
+                    int c = is.read();
+                    if(c < 0) {
+                        throw new IOException("Short PBM");
+                    } else if(c == '1') {
+                        row[x/8] |= 0x80 >> (x%8);
+                        x++;
+                    } else if(c == '0') {
+                        x++;
+                    }
+                }
+            }
+            VCGenerator.rowToBits(row, r, plane);
+        }
+        return plane;
+    }
+
+    private static final byte[]
+    readPlane(String file)
+    throws IOException
+    {
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return readPlane(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /* * * * * * Batch modes * * * * * */
+
+    /* Work shared out among threads until count runs out */
+    private abstract static class Batch {
+        final AtomicLong left;
+        final AtomicLong good = new AtomicLong();
+        final AtomicLong bad = new AtomicLong();
+        final List<String> users;
+        final byte[][] slides;
+
+        Batch(long count, List<String> users, byte[][] slides) {
+            this.left = new AtomicLong(count);
+            this.users = users;
+            this.slides = slides;
+        }
+
+        /** One attempt as user u; true if it came out right */
+        abstract boolean attempt(int u, Random r) throws Exception;
+
+        final void
+        run(int threads)
+        throws InterruptedException
+        {
+            List<Thread> ts = new ArrayList<Thread>();
+            for(int t = 0; t < threads; t++) {
+                final long rseed = System.nanoTime() + t;
+                ts.add(new Thread(new Runnable() {
+                    public void run() {
+                        Random r = new Random(rseed);
+                        long n;
+                        while((n = left.decrementAndGet()) >= 0) {
+                            int u = (int)(n % users.size());
+                            boolean ok;
+                            try {
+                                ok = attempt(u, r);
+                            } catch (Exception e) {
+                                System.err.println(users.get(u) + ": " + e);
+                                ok = false;
+                            }
+                            (ok ? good : bad).incrementAndGet();
+                        }
+                    }
+                }, "VCSolver-" + t));
+            }
+            for(Thread t : ts) {
+                t.start();
+            }
+            for(Thread t : ts) {
+                t.join();
+            }
+        }
+    }
+
+    /* Generate and solve challenges locally */
+    private static final Batch
+    checker(long count, List<String> users, byte[][] slides,
+            final Map<String,char[][]> seeds, final int format,
+            final int minevt)
+    {
+        return new Batch(count, users, slides) {
+            boolean attempt(int u, Random r) throws Exception {
+                char[][] s = seeds.get(users.get(u));
+                int[] plain = VCResponse.random(r, minevt);
+                byte[] chal = VCGenerator.generateChallengeBits(
+                                        s[1], s[0], plain, format, null);
+                String want = VCResponse.encode(plain).toString();
+                String got = solve(slides[u], chal).toString();
+                if(!got.equals(want)) {
+                    System.err.println(users.get(u) + ": wanted " + want
+                                       + ", solved " + got);
+                    return false;
+                }
+                return true;
+            }
+        };
+    }
+
+    /* Authenticate against a VCServer */
+    private static final Batch
+    client(long count, List<String> users, byte[][] slides,
+           final String base)
+    {
+        return new Batch(count, users, slides) {
+            boolean attempt(int u, Random r) throws Exception {
+                String user = "user=" + URLEncoder.encode(users.get(u),
+                                                          "UTF-8");
+                HttpURLConnection c = post(base + "/challenge", user);
+                if(c.getResponseCode() != 200) {
+                    throw new IOException("challenge: "
+                                          + c.getResponseCode());
+                }
+                String session = c.getHeaderField("X-VC-Session");
+                InputStream is = new BufferedInputStream(c.getInputStream());
+                byte[] chal;
+                try {
+                    chal = readPlane(is);
+                } finally {
+                    is.close();
+                }
+
+                c = post(base + "/verify",
+                         user + "&session=" + session
+                         + "&response=" + solve(slides[u], chal));
+                int code = c.getResponseCode();
+                (code == 200 ? c.getInputStream() : c.getErrorStream())
+                    .close();
+                return code == 200;
+            }
+        };
+    }
+
+    private static final HttpURLConnection
+    post(String url, String form)
+    throws IOException
+    {
+        HttpURLConnection c = (HttpURLConnection) new URL(url)
+                                                    .openConnection();
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setRequestProperty("Content-Type",
+                             "application/x-www-form-urlencoded");
+        OutputStream os = c.getOutputStream();
+        os.write(form.getBytes("US-ASCII"));
+        os.close();
+        return c;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd = parser.parse(cliopts, args);
+
+        if(cmd.hasOption(OPT_SO_HELP) || args.length == 0) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp( "VCSolver" , cliopts );
+            return;
+        }
+
+        Security.addProvider(VCCrypto.provider());
+
+        if(cmd.hasOption(OPT_SO_CHAL)) {
+            if(!cmd.hasOption(OPT_SO_SLIDE)) {
+                System.err.println("Need a slide to solve with");
+                return;
+            }
+            System.out.println(solve(
+                        readPlane(cmd.getOptionValue(OPT_SO_SLIDE)),
+                        readPlane(cmd.getOptionValue(OPT_SO_CHAL))));
+            return;
+        }
+
+        if(!cmd.hasOption(OPT_SO_USERS)) {
+            System.err.println("Need users to check or authenticate as");
+            return;
+        }
+
+        int format = VCCrypto.FORMAT_DEFAULT;
+        if(cmd.hasOption(OPT_SO_FORMAT)) {
+            String f = cmd.getOptionValue(OPT_SO_FORMAT);
+            format = VCSlideGen.parseFormat(f);
+            if(format < 0) {
+                System.err.println("Unknown format: " + f);
+                return;
+            }
+        }
+        long count = Long.parseLong(cmd.getOptionValue(OPT_SO_COUNT,
+                                                       "1000"));
+        int threads = Runtime.getRuntime().availableProcessors();
+        if(cmd.hasOption(OPT_SO_THREAD)) {
+            threads = Integer.parseInt(cmd.getOptionValue(OPT_SO_THREAD));
+        }
+        int minevt = Integer.parseInt(cmd.getOptionValue(OPT_SO_MINEVT,
+                                                         "1"));
+
+        Map<String,char[][]> seeds
+            = VCServer.readUsers(cmd.getOptionValue(OPT_SO_USERS));
+        List<String> users = new ArrayList<String>(seeds.keySet());
+        if(users.isEmpty()) {
+            System.err.println("No users");
+            return;
+        }
+
+        /* Slides are the same for every challenge; make them once */
+        byte[][] slides = new byte[users.size()][];
+        for(int u = 0; u < slides.length; u++) {
+            slides[u] = VCGenerator.generateSlideBits(
+                            seeds.get(users.get(u))[0], format, null);
+        }
+
+        Batch b = cmd.hasOption(OPT_SO_SERVER)
+                ? client(count, users, slides,
+                         cmd.getOptionValue(OPT_SO_SERVER))
+                : checker(count, users, slides, seeds, format, minevt);
+
+        long t0 = System.nanoTime();
+        b.run(threads);
+        double secs = (System.nanoTime() - t0) / 1e9;
+
+        long n = b.good.get() + b.bad.get();
+        System.out.println(n + " challenges, " + b.bad.get() + " wrong, "
+                           + String.format("%.1f", n / secs) + "/s");
+        if(b.bad.get() != 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -16,31 +16,13 @@ public class Utils {
         return list.size() > 0;
     }
 
-        /*
-         * DJB Netstrings-esque encoding functions for storing
-         * our two seeds in one string.
-         */
+        /* Seed encoding has moved to VCSeedCodec; kept for callers. */
         public static String encode_seeds(char[] useed, char[] vseed) {
-                StringBuilder seed = new StringBuilder();
-                seed.append(Integer.toString(useed.length));
-                seed.append(':');
-                seed.append(useed);
-                seed.append(Integer.toString(vseed.length));
-                seed.append(':');
-                seed.append(vseed);
-                return seed.toString();
+                return VCSeedCodec.encode_seeds(useed, vseed);
         }
 
         public static char[][] decode_seeds(String s) {
-                StringBuilder sb = new StringBuilder(s);
-                int ulenend = sb.indexOf(":");
-                int ulen = Integer.parseInt(sb.substring(0,ulenend));
-                int vlenend = sb.indexOf(":",ulenend+ulen+1);
-                int vlen = Integer.parseInt(sb.substring(ulenend+ulen+1,vlenend));
-                char[][] ret = new char[2][];
-                ret[0] = sb.substring(ulenend+1,ulenend+ulen+1).toCharArray();
-                ret[1] = sb.substring(vlenend+1).toCharArray();
-                return ret;
+                return VCSeedCodec.decode_seeds(s);
         }
 
 }
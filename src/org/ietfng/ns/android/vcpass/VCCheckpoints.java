@@ -0,0 +1,351 @@
+/** Cell-boundary checkpoints of FORMAT_CFB8 keystreams.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * An AES/CFB8 stream's entire state, besides the key, is its 16-octet
+ * shift register, which after any output is simply the last 16 octets
+ * of keystream.  Saving the register as each cell begins therefore
+ * lets that cell be regenerated on its own, by re-initializing the
+ * cipher with the saved register as IV, and so lets legacy streams be
+ * generated a cell at a time, in any order or in parallel, without
+ * changing a bit of their output.
+ *
+ * VCKeystream records the registers whenever it makes a full pass
+ * over a stream and looks them up here when opening one; they are
+ * indexed by a digest of the seed and the number of entries in the
+ * stream (1 for a slide, VCVOC_SIZE for a vocabulary).  Since they
+ * are keystream, they are overwritten when evicted.
+ *
+ * The map lasts only as long as the process, so the app also records
+ * a pass's checkpoints when it is enrolled and keeps them on disk
+ * beside it, restoring them before generating.  As with VCTileStore,
+ * the file is
+ *
+ *      "VCC" version(1) entries(int) iv(16) AES-CTR(checkpoints) mac(32)
+ *
+ * under keys derived from the seed's KDF output, and one that does
+ * not verify is ignored.
+ */
+final class VCCheckpoints {
+
+    /** Octets of register per cell */
+    static final int REGBYTES = 16;
+
+    private static final byte[] MAGIC = { 'V', 'C', 'C', 1 };
+    private static final String CIPHER = "AES/CTR/NoPadding";
+    private static final String MAC = "HmacSHA256";
+    private static final int IVLEN = 16;
+    private static final int MACLEN = 32;
+    private static final int CPBYTES = VCGenerator.cells*REGBYTES;
+
+    /* Entries kept; guarded by cache */
+    private static int limit = VCCrypto.CHECKPOINTCACHE_SIZE;
+
+    private static final LinkedHashMap<ByteBuffer,byte[]> cache
+        = new LinkedHashMap<ByteBuffer,byte[]>(
+                VCCrypto.CHECKPOINTCACHE_SIZE+1, 0.75f, true) {
+            protected boolean
+            removeEldestEntry(Map.Entry<ByteBuffer,byte[]> e) {
+                if(size() > limit) {
+                    Arrays.fill(e.getValue(), (byte)0);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    private VCCheckpoints() { }
+
+    /** Keep up to n entries hereafter, dropping (and overwriting) the
+     * least recently used of any beyond that now.
+     */
+    static final void
+    setSize(final int n) {
+        synchronized(cache) {
+            limit = n;
+            Iterator<Map.Entry<ByteBuffer,byte[]>> i
+                = cache.entrySet().iterator();
+            while(cache.size() > n && i.hasNext()) {
+                Arrays.fill(i.next().getValue(), (byte)0);
+                i.remove();
+            }
+        }
+    }
+
+    /** Name the stream of seed with the given number of entries */
+    static final ByteBuffer
+    id(final char[] seed, final int entries)
+    throws GeneralSecurityException
+    {
+        final ByteBuffer fp = VCKeyCache.fingerprint(seed);
+        final ByteBuffer id = ByteBuffer.allocate(fp.capacity() + 1);
+        id.put(fp).put((byte)entries).flip();
+        return id;
+    }
+
+    /** A copy of the checkpoints for a stream, or null. */
+    static final byte[]
+    get(final ByteBuffer id) {
+        synchronized(cache) {
+            byte[] cps = cache.get(id);
+            return (cps == null) ? null : cps.clone();
+        }
+    }
+
+    /** Remember cells*REGBYTES octets of checkpoints for a stream;
+     * cps belongs to the cache hereafter.
+     */
+    static final void
+    put(final ByteBuffer id, final byte[] cps) {
+        assert(cps.length == VCGenerator.cells*REGBYTES);
+
+        synchronized(cache) {
+            if(cache.containsKey(id)) {
+                Arrays.fill(cps, (byte)0);
+            } else {
+                cache.put(id, cps);
+            }
+        }
+    }
+
+    /** Forget (and overwrite) every checkpoint. */
+    static final void
+    clear() {
+        synchronized(cache) {
+            Iterator<byte[]> i = cache.values().iterator();
+            while(i.hasNext()) {
+                Arrays.fill(i.next(), (byte)0);
+                i.remove();
+            }
+        }
+    }
+
+    /* * * * * * On disk * * * * * */
+
+    /** Checkpoint seed's stream of entries, running it once if they
+     * are held neither here nor in dir, and keep them in dir.  Only
+     * FORMAT_CFB8 streams need this.  Returns false if the calling
+     * thread is interrupted.
+     */
+    static final boolean
+    record(final File dir, final char[] seed, final int entries)
+    throws GeneralSecurityException
+    {
+        final ByteBuffer id = id(seed, entries);
+        final File f = new File(dir, name(id));
+
+        byte[] cps = get(id);
+        if(cps == null) {
+            restore(dir, seed, entries);
+            cps = get(id);
+        }
+        if(cps == null) {
+            VCKeystream ks = VCKeystream.open(seed, VCCrypto.FORMAT_CFB8,
+                                              entries);
+            byte[] buf = new byte[VCGenerator.cellbytes*entries];
+            for(int i = 0; i < VCGenerator.cells; i++) {
+                if(Thread.interrupted()) {
+                    Arrays.fill(buf, (byte)0);
+                    return false;
+                }
+                ks.entries(i, buf, 0);
+            }
+            Arrays.fill(buf, (byte)0);
+            cps = get(id);
+        }
+
+        if(cps != null) {
+            if(!f.exists()) {
+                save(f, seed, entries, cps);
+            }
+            Arrays.fill(cps, (byte)0);
+        }
+        return true;
+    }
+
+    /** Load the checkpoints of seed's stream of entries from dir, if
+     * not already held and the file there verifies.
+     */
+    static final void
+    restore(final File dir, final char[] seed, final int entries)
+    throws GeneralSecurityException
+    {
+        final ByteBuffer id = id(seed, entries);
+        synchronized(cache) {
+            if(cache.containsKey(id)) {
+                return;
+            }
+        }
+
+        byte[] cps = load(new File(dir, name(id)), seed, entries);
+        if(cps != null) {
+            put(id, cps);
+        }
+    }
+
+    /** Delete seed's checkpoints from dir, as when its pass is cleared
+     * or replaced, and forget (and overwrite) them here.
+     */
+    static final void
+    forget(final File dir, final char[] seed, final int entries)
+    throws GeneralSecurityException
+    {
+        final ByteBuffer id = id(seed, entries);
+        synchronized(cache) {
+            byte[] cps = cache.remove(id);
+            if(cps != null) {
+                Arrays.fill(cps, (byte)0);
+            }
+            new File(dir, name(id)).delete();
+        }
+    }
+
+    private static final String
+    name(final ByteBuffer id) {
+        StringBuilder sb = new StringBuilder("checkpoints-");
+        for(int i = 0; i < id.capacity(); i++) {
+            sb.append(Integer.toHexString((id.get(i) & 0xFF) | 0x100)
+                             .substring(1));
+        }
+        return sb.append(".vcc").toString();
+    }
+
+    /* HMAC(key, label), truncated to len octets */
+    private static final SecretKeySpec
+    fileKey(final char[] seed, final String label,
+            final String alg, final int len)
+    throws GeneralSecurityException
+    {
+        byte[] sk = VCKeyCache.get(seed).key.getEncoded();
+        Mac m = Mac.getInstance(MAC, VCCrypto.provider());
+        m.init(new SecretKeySpec(sk, MAC));
+        byte[] k;
+        try {
+            k = m.doFinal(label.getBytes("US-ASCII"));
+        } catch (java.io.UnsupportedEncodingException uee) {
+            throw new GeneralSecurityException(uee.toString());
+        }
+        Arrays.fill(sk, (byte)0);
+
+        SecretKeySpec ks = new SecretKeySpec(k, 0, len, alg);
+        Arrays.fill(k, (byte)0);
+        return ks;
+    }
+
+    private static final Cipher
+    cipher(int mode, char[] seed, byte[] iv)
+    throws GeneralSecurityException
+    {
+        Cipher c = Cipher.getInstance(CIPHER, VCCrypto.provider());
+        c.init(mode, fileKey(seed, "VCPass checkpoint cipher",
+                             VCCrypto.CSKEYALG, VCCrypto.CSKEYBITS/8),
+               new IvParameterSpec(iv));
+        return c;
+    }
+
+    private static final Mac
+    mac(char[] seed, int entries, byte[] iv)
+    throws GeneralSecurityException
+    {
+        Mac m = Mac.getInstance(MAC, VCCrypto.provider());
+        m.init(fileKey(seed, "VCPass checkpoint mac", MAC, MACLEN));
+        m.update(MAGIC);
+        m.update(ByteBuffer.allocate(4).putInt(0, entries).array());
+        m.update(iv);
+        return m;
+    }
+
+    private static final void
+    save(File f, char[] seed, int entries, byte[] cps)
+    throws GeneralSecurityException
+    {
+        byte[] iv = new byte[IVLEN];
+        new SecureRandom().nextBytes(iv);
+        byte[] ct = cipher(Cipher.ENCRYPT_MODE, seed, iv).doFinal(cps);
+        byte[] tag = mac(seed, entries, iv).doFinal(ct);
+
+        /* Write beside the target and rename, so that a reader never
+         * sees half a file.
+         */
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            DataOutputStream os
+                = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                os.write(MAGIC);
+                os.writeInt(entries);
+                os.write(iv);
+                os.write(ct);
+                os.write(tag);
+            } finally {
+                os.close();
+            }
+            if(!tmp.renameTo(f)) {
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            tmp.delete();
+        }
+    }
+
+    private static final byte[]
+    load(File f, char[] seed, int entries)
+    throws GeneralSecurityException
+    {
+        byte[] magic = new byte[MAGIC.length];
+        byte[] iv = new byte[IVLEN];
+        byte[] ct = new byte[CPBYTES];
+        byte[] tag = new byte[MACLEN];
+
+        try {
+            DataInputStream is
+                = new DataInputStream(new FileInputStream(f));
+            try {
+                is.readFully(magic);
+                if(!Arrays.equals(magic, MAGIC)
+                        || is.readInt() != entries) {
+                    return null;
+                }
+                is.readFully(iv);
+                is.readFully(ct);
+                is.readFully(tag);
+                if(is.read() != -1) {
+                    return null;
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException ioe) {
+            return null;
+        }
+
+        if(!MessageDigest.isEqual(mac(seed, entries, iv).doFinal(ct), tag)) {
+            return null;
+        }
+        return cipher(Cipher.DECRYPT_MODE, seed, iv).doFinal(ct);
+    }
+}
@@ -0,0 +1,94 @@
+/** Keystream and key-derivation configuration.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.security.Provider;
+
+/*
+ * Constructing a BouncyCastleProvider loads a great many classes, so
+ * it is put off until something actually wants to do crypto, rather
+ * than happening whenever anything reads a grid dimension.  warmUp()
+ * lets a caller who knows crypto is coming pay for it (and for
+ * VCKeystreamEngine's calibration) off the UI thread.
+ */
+final class VCCrypto {
+
+    private VCCrypto() { }
+
+    private static final class ProviderHolder {
+        static final Provider CSPROV =
+            new org.bouncycastle.jce.provider.BouncyCastleProvider();
+    }
+
+        /** The BouncyCastle provider, made on first use */
+    static final Provider
+    provider() {
+        return ProviderHolder.CSPROV;
+    }
+
+        /* CSPRNG Class name */
+    static final String CSPRNG = "AES/CFB8/NoPadding";
+        /* Block cipher used to compute FORMAT_CTR rows; see VCKeystream */
+    static final String CSPRNG_CTR = "AES/ECB/NoPadding";
+        /* ... or, by the platform's provider, in one go; see VCKeystreamEngine */
+    static final String CSPRNG_CTRMODE = "AES/CTR/NoPadding";
+    static final String CSKEYFACT = "PBEWithSHAAnd128BitAES-CBC-BC";
+        /* Parameters of the CSKEYFACT derivation; see VCKeyCache */
+    static final String CSKEYALG = "AES";
+    static final int CSKEYBITS = 128;
+    static final byte[] CSKDF_SALT = { 0x22, 0x24 };
+    static final int CSKDF_ITERS = 1024;
+        /* Default numbers of entries kept by each cache; servers and
+         * the like, with many more users, set their own with setSize */
+        /** Number of derived seed keys kept by VCKeyCache */
+    static final int KEYCACHE_SIZE = 8;
+        /** Number of user slides kept by VCSlideCache */
+    static final int SLIDECACHE_SIZE = 4;
+        /** Number of streams' CFB8 checkpoints kept by VCCheckpoints */
+    static final int CHECKPOINTCACHE_SIZE = 8;
+        /** Number of seed pairs' vocabulary tiles kept by VCTileStore */
+    static final int TILECACHE_SIZE = 2;
+
+        /** Keystream layout versions.
+         * FORMAT_CFB8 is what every slide printed so far uses and must
+         * stay generatable; FORMAT_CTR and FORMAT_CHACHA20 can seek
+         * to any row.
+         * @see VCKeystream
+         */
+    static final int FORMAT_CFB8 = 1;
+    static final int FORMAT_CTR  = 2;
+    static final int FORMAT_CHACHA20 = 3;
+    static final int FORMAT_DEFAULT = FORMAT_CFB8;
+
+        /* Work done per engine when picking one; see VCKeystreamEngine */
+    static final int ENGINE_BENCH_CELLS  = 4;
+    static final int ENGINE_BENCH_ROUNDS = 3;
+
+    private static Thread warmer = null;
+
+        /** Start, once, a background thread that makes the provider
+         * and picks the engine for the default format.
+         */
+    static final synchronized void
+    warmUp() {
+        if(warmer != null) {
+            return;
+        }
+
+        warmer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    VCKeystreamEngine.forFormat(FORMAT_DEFAULT);
+                } catch (Exception e) {
+                    /* The first real use will report it */
+                }
+            }
+        }, "VCCrypto warm-up");
+        warmer.setPriority(Thread.MIN_PRIORITY);
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+}
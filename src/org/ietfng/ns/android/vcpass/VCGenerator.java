@@ -9,14 +9,15 @@ import java.security.GeneralSecurityException;
 import java.security.Provider;
 import java.security.ProviderException;
 
-import java.util.Stack;
-import java.util.Vector;
-
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.PBEParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public final class VCGenerator {
 
@@ -24,16 +25,16 @@ public final class VCGenerator {
         public void progress(int x);
     }
 
-    private static final int cells = VCParameters.GRID_X
-                                   * VCParameters.GRID_Y;
+    static final int cells = VCParameters.GRID_X
+                           * VCParameters.GRID_Y;
     private static final int cpix = VCParameters.DISP_X
                                   * VCParameters.DISP_Y
                                   / VCParameters.GRID_X
                                   / VCParameters.GRID_Y;
-    private static final int crvpix = VCParameters.DISP_X
+    static final int crvpix = VCParameters.DISP_X
                                     / VCParameters.GRID_X
                                     / VCParameters.PR_X;
-    private static final int ccvpix = VCParameters.DISP_Y
+    static final int ccvpix = VCParameters.DISP_Y
                                     / VCParameters.GRID_Y
                                     / VCParameters.PR_Y;
     private static final int crpix = VCParameters.DISP_X
@@ -41,51 +42,286 @@ public final class VCGenerator {
     private static final int ccpix = VCParameters.DISP_Y
                                    / VCParameters.GRID_Y;
 
-    private static final void
-    _bitsToVCPixels(Stack<Integer> r,
-                    Integer c1,
-                    Integer c2,
-                    byte[] bits) {
-
-        for(int i = 0; i < crvpix/8; i++) {
-            byte by = bits[i];
-            for (int b = 0; b < 8; b++) {
-                boolean bi = !((by & 0x80) == 0);
-                by <<= 1;
-
-                for(int px = 0; px < VCParameters.PR_X; px++) {
-                    if(bi) { r.push(c1); }
-                    else   { r.push(c2); }
-                    Integer ct; ct = c1; c1 = c2; c2 = ct;
+    /* Octets of CSPRNG output consumed per row of VC pixels */
+    static final int rowbytes = (crvpix+7)/8;
+    /* Octets of bitplane per cell */
+    static final int cellbytes = ccvpix*rowbytes;
+
+    /*
+     * A bitplane is a byte[cells*cellbytes] holding one bit per VC
+     * pixel, laid out exactly as the CSPRNG emits it: cell by cell,
+     * row by row, rowbytes octets per row, MSB first.  Nothing is
+     * turned into real pixels until one of the expanders below is
+     * asked to do so.
+     */
+
+    /** Expand one cell of a bitplane into ARGB pixels.
+     *
+     * The cell's crpix*ccpix real pixels are written into dst
+     * starting at off, with successive rows stride ints apart.
+     */
+    public final static void
+    bitsToPixels(final byte[] plane,
+                 final int cell,
+                 final int[] dst,
+                 final int off,
+                 final int stride) {
+        final int black = VCParameters.black;
+        final int white = VCParameters.white;
+
+        int pi = cell*cellbytes;
+        int ro = off;
+        for(int j = 0; j < ccvpix; j++, pi += rowbytes) {
+            for(int py = 0; py < VCParameters.PR_Y; py++, ro += stride) {
+                final int c1 = (py < VCParameters.PR_Y/2) ? black : white;
+                final int c2 = (py < VCParameters.PR_Y/2) ? white : black;
+
+                /* The two colours swap after every real pixel,
+                 * carried across VC pixels within the row.
+                 */
+                boolean sw = false;
+                int o = ro;
+                for(int x = 0; x < crvpix; x++) {
+                    final boolean bi = (plane[pi + x/8] & (0x80 >> (x%8))) != 0;
+                    for(int px = 0; px < VCParameters.PR_X; px++) {
+                        dst[o++] = (bi ^ sw) ? c1 : c2;
+                        sw = !sw;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Octets per packed display row, as filled by bitsToRow */
+    public static final int dispRowBytes = (VCParameters.DISP_X+7)/8;
+
+    /** Expand one display row of a bitplane into packed 1-bit pixels.
+     *
+     * Row r (of DISP_Y) is written to out[0 .. dispRowBytes) as
+     * DISP_X bits, MSB first, with 1 for black as in PBM.  Nothing
+     * else is allocated.
+     */
+    public final static void
+    bitsToRow(final byte[] plane, final int r, final byte[] out) {
+        assert(out.length >= dispRowBytes);
+
+        final int cr = r%ccpix;
+        final int j = cr/VCParameters.PR_Y;
+        /* Top half of each VC pixel starts with black; see bitsToPixels */
+        final boolean top = (cr%VCParameters.PR_Y) < VCParameters.PR_Y/2;
+
+        for(int i = 0; i < dispRowBytes; i++) {
+            out[i] = 0;
+        }
+
+        int x = 0;
+        for(int gc = 0; gc < VCParameters.GRID_X; gc++) {
+            final int cell = (r/ccpix)*VCParameters.GRID_X + gc;
+            final int pi = cell*cellbytes + j*rowbytes;
+
+            boolean sw = false;
+            for(int vx = 0; vx < crvpix; vx++) {
+                final boolean bi = (plane[pi + vx/8] & (0x80 >> (vx%8))) != 0;
+                for(int px = 0; px < VCParameters.PR_X; px++, x++) {
+                    if((bi ^ sw) == top) {
+                        out[x/8] |= 0x80 >> (x%8);
+                    }
+                    sw = !sw;
+                }
+            }
+        }
+    }
+
+    /** Read one display row, as bitsToRow writes it, back into plane.
+     *
+     * Only the first real row of each VC pixel is needed; other rows
+     * are ignored.  The inverse of bitsToRow.
+     */
+    public final static void
+    rowToBits(final byte[] in, final int r, final byte[] plane) {
+        assert(in.length >= dispRowBytes);
+
+        final int cr = r%ccpix;
+        if(cr%VCParameters.PR_Y != 0) {
+            return;
+        }
+        final int j = cr/VCParameters.PR_Y;
+
+        for(int gc = 0; gc < VCParameters.GRID_X; gc++) {
+            final int cell = (r/ccpix)*VCParameters.GRID_X + gc;
+            final int pi = cell*cellbytes + j*rowbytes;
+
+            for(int vx = 0; vx < crvpix; vx++) {
+                final int x = gc*crpix + vx*VCParameters.PR_X;
+                final boolean b = (in[x/8] & (0x80 >> (x%8))) != 0;
+                /* The colours swap after every real pixel */
+                final boolean sw = ((vx*VCParameters.PR_X) & 1) != 0;
+                if(b ^ sw) {
+                    plane[pi + vx/8] |= (byte)(0x80 >> (vx%8));
+                } else {
+                    plane[pi + vx/8] &= (byte)~(0x80 >> (vx%8));
+                }
+            }
+        }
+    }
+
+    /** Recover a bitplane from the per-cell Integer[][] representation.
+     *
+     * The inverse of bitsToVCArray.
+     */
+    public final static byte[] vcArrayToBits(final Integer[][] cella) {
+        assert(cella.length == cells);
+
+        final byte[] plane = new byte[cells*cellbytes];
+        for(int i = 0; i < cells; i++) {
+            assert(cella[i].length == crpix*ccpix);
+            for(int j = 0; j < ccvpix; j++) {
+                final int ro = j*VCParameters.PR_Y*crpix;
+                for(int vx = 0; vx < crvpix; vx++) {
+                    final boolean b = cella[i][ro + vx*VCParameters.PR_X]
+                                        .intValue() == VCParameters.black;
+                    final boolean sw = ((vx*VCParameters.PR_X) & 1) != 0;
+                    if(b ^ sw) {
+                        plane[i*cellbytes + j*rowbytes + vx/8]
+                            |= (byte)(0x80 >> (vx%8));
+                    }
                 }
             }
         }
+        return plane;
+    }
+
+    /*
+     * RGB_565 palette for bitsToRgb565, indexed by
+     *      (black ? 1 : 0) + 2*(number of grid lines over the pixel)
+     * The lines are blended the way Canvas.drawLine blends a
+     * translucent colour, once per line.
+     */
+    private static final short[] rgb565 = new short[6];
+    static {
+        for(int i = 0; i < rgb565.length; i++) {
+            int c = ((i & 1) != 0) ? VCParameters.black : VCParameters.white;
+            for(int l = 0; l < i/2; l++) {
+                c = blend(VCParameters.gridline, c);
+            }
+            rgb565[i] = (short)( ((c >> 8) & 0xF800)
+                               | ((c >> 5) & 0x07E0)
+                               | ((c >> 3) & 0x001F));
+        }
+    }
+
+    private static final int
+    blend(final int over, final int under) {
+        final int a = over >>> 24;
+        int res = 0xFF000000;
+        for(int sh = 0; sh < 24; sh += 8) {
+            final int o = (over  >> sh) & 0xFF;
+            final int u = (under >> sh) & 0xFF;
+            res |= ((o*a + u*(255-a) + 127)/255) << sh;
+        }
+        return res;
+    }
 
-        byte by = bits[(crvpix+7)/8 - 1];
-        for (int b = 0; b < crvpix%8; b++) {
-            boolean bi = !((by & 0x80) == 0);
-            by <<= 1;
+    /* Is display row or column x under a grid line? */
+    private static final boolean
+    onGrid(final int x, final int cpx, final int disp) {
+        return (x%cpx == cpx-1 && x < disp-1) || (x%cpx == 0 && x > 0);
+    }
 
-            for(int px = 0; px < VCParameters.PR_X; px++) {
-                if(bi) { r.push(c1); }
-                else   { r.push(c2); }
-                Integer ct; ct = c1; c1 = c2; c2 = ct;
+    /** Render a bitplane as RGB_565 pixels with the grid drawn in.
+     *
+     * dst receives DISP_Y rows of DISP_X pixels, row-major with no
+     * padding, as Bitmap.copyPixelsFromBuffer wants for an RGB_565
+     * bitmap of the display size.  Nothing is allocated.
+     */
+    public final static void
+    bitsToRgb565(final byte[] plane, final short[] dst) {
+        for(int i = 0; i < cells; i++) {
+            bitsToRgb565(plane, i, dst);
+        }
+    }
+
+    /** Render just cell i of a bitplane into its place in dst,
+     * laid out as for bitsToRgb565(plane, dst).
+     */
+    public final static void
+    bitsToRgb565(final byte[] plane, final int cell, final short[] dst) {
+        assert(plane.length == cells*cellbytes);
+        assert(dst.length >= VCParameters.DISP_X*VCParameters.DISP_Y);
+
+        final VCTrace tr = VCTrace.current();
+        final long t0 = VCTrace.now(tr);
+
+        final int x0 = (cell%VCParameters.GRID_X)*crpix;
+        final int y0 = (cell/VCParameters.GRID_X)*ccpix;
+
+        for(int cr = 0; cr < ccpix; cr++) {
+            final int r = y0 + cr;
+            final int pi = cell*cellbytes + (cr/VCParameters.PR_Y)*rowbytes;
+            /* Top half of each VC pixel starts with black; see bitsToPixels */
+            final boolean top = (cr%VCParameters.PR_Y) < VCParameters.PR_Y/2;
+            final int hl = onGrid(r, ccpix, VCParameters.DISP_Y) ? 2 : 0;
+
+            int o = r*VCParameters.DISP_X + x0;
+            int x = x0;
+            boolean sw = false;
+            for(int vx = 0; vx < crvpix; vx++) {
+                final boolean bi = (plane[pi + vx/8] & (0x80 >> (vx%8))) != 0;
+                for(int px = 0; px < VCParameters.PR_X; px++, x++) {
+                    int ix = ((bi ^ sw) == top) ? 1 : 0;
+                    ix += hl;
+                    if(onGrid(x, crpix, VCParameters.DISP_X)) {
+                        ix += 2;
+                    }
+                    dst[o++] = rgb565[ix];
+                    sw = !sw;
+                }
             }
         }
+
+        VCTrace.phase(tr, VCTrace.RENDER, t0);
     }
 
-    private static final Vector<Integer>
-    bitsToVCPixels(byte[] bits) {
-        Stack<Integer> r = new Stack<Integer>();
-        int py;
-        for(py = 0; py < VCParameters.PR_Y/2; py++) {
-            _bitsToVCPixels(r, VCParameters.black, VCParameters.white, bits);
+    /** Expand a whole bitplane into a DISP_Y x DISP_X pixel array */
+    public final static int[][] bitsToPixels(final byte[] plane) {
+        assert(plane.length == cells*cellbytes);
+
+        int[] flat = new int[VCParameters.DISP_X*VCParameters.DISP_Y];
+        for(int i = 0; i < cells; i++) {
+            bitsToPixels(plane, i, flat,
+                         (i/VCParameters.GRID_X)*ccpix*VCParameters.DISP_X
+                            + (i%VCParameters.GRID_X)*crpix,
+                         VCParameters.DISP_X);
         }
-        for(; py < VCParameters.PR_Y; py++) {
-            _bitsToVCPixels(r, VCParameters.white, VCParameters.black, bits);
+
+        int[][] res = new int[VCParameters.DISP_Y][];
+        for(int r = 0; r < VCParameters.DISP_Y; r++) {
+            res[r] = new int[VCParameters.DISP_X];
+            System.arraycopy(flat, r*VCParameters.DISP_X,
+                             res[r], 0, VCParameters.DISP_X);
         }
+        return res;
+    }
+
+    /** Adapt a bitplane to the per-cell Integer[][] representation.
+     *
+     * Only the two shared boxed colours are referenced; no further
+     * Integers are created.
+     */
+    public final static Integer[][] bitsToVCArray(final byte[] plane) {
+        assert(plane.length == cells*cellbytes);
 
-        return r;
+        int[] cellpix = new int[crpix*ccpix];
+        Integer[][] cella = new Integer[cells][];
+        for(int i = 0; i < cells; i++) {
+            bitsToPixels(plane, i, cellpix, 0, crpix);
+            cella[i] = new Integer[cellpix.length];
+            for(int p = 0; p < cellpix.length; p++) {
+                cella[i][p] = (cellpix[p] == VCParameters.black)
+                            ? VCParameters.black : VCParameters.white;
+            }
+        }
+        return cella;
     }
 
 /*
@@ -100,7 +336,7 @@ public final class VCGenerator {
 */
 
     /*
-     * The CSPRNGs are clocked as follows:
+     * In FORMAT_CFB8 the CSPRNGs are clocked as follows:
      *      For each cell,
      *          For each row,
      *              For each vocabulary entry,
@@ -127,6 +363,9 @@ public final class VCGenerator {
      *      VCVOC_SIZE*...
      * or
      *      16*4*4*160*160 bits = 6553600 bits = 819200 bytes
+     *
+     * FORMAT_CTR assigns rows of keystream the same indices but
+     * computes only those actually used; see VCKeystream.
      */ 
 
     public final static Integer[][]
@@ -136,27 +375,89 @@ public final class VCGenerator {
     ) throws
         ProviderException, GeneralSecurityException
     {
-        Cipher slidec = seedToCipher(useed);
+        return bitsToVCArray(generateSlideBits(useed, pcb));
+    }
 
-        Integer[][] cella = new Integer[cells][];
+    public final static Integer[][] generateChallenge(
+        final char[] vseed,
+        final char[] useed,
+        final int[] plain,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        byte[] plane = generateChallengeBits(vseed, useed, plain, pcb);
+        if(plane == null) {
+            return null;
+        }
+        return bitsToVCArray(plane);
+    }
+
+    /** Generate the user's slide as a bitplane. */
+    public final static byte[]
+    generateSlideBits(
+        final char[] useed,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        return generateSlideBits(useed, VCCrypto.FORMAT_DEFAULT, pcb);
+    }
+
+    /** Generate the user's slide as a bitplane in the given format. */
+    public final static byte[]
+    generateSlideBits(
+        final char[] useed,
+        final int format,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        return generateSlideBits(useed, format, null, pcb);
+    }
+
+    /** Generate the user's slide as a bitplane, possibly in parallel.
+     *
+     * If exec is non-null and the stream can seek (FORMAT_CTR, or
+     * FORMAT_CFB8 once checkpointed by an earlier pass; see
+     * VCCheckpoints), cells are generated concurrently on exec.
+     * Returns null if the calling
+     * thread is interrupted while waiting for them.
+     */
+    public final static byte[]
+    generateSlideBits(
+        final char[] useed,
+        final int format,
+        final ExecutorService exec,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        VCKeystream slidec = VCKeystream.open(useed, format, 1);
+
+        final byte[] plane = bytes(cells*cellbytes);
+
+        if(exec != null && slidec.seekable()) {
+            boolean done = runCells(exec, new CellTask() {
+                public void cell(int i) throws GeneralSecurityException {
+                    slideCell(VCKeystream.open(useed, format, 1), i, plane);
+                }
+            }, pcb);
+            return done ? plane : null;
+        }
 
         for(int i = 0; i < cells; i++) {
-            Vector<Integer> cell = new Vector<Integer>();
-            for(int j = 0; j < ccvpix; j++) {
-                byte[] srow = new byte[(crvpix+7)/8];
-                srow = slidec.update(srow);
-                assert(srow.length == (crvpix+7)/8);
-                Vector<Integer> srowvc = bitsToVCPixels(srow);
-                cell.addAll(srowvc);
-            } /* Row */
-            cella[i] = new Integer[cell.size()];
-            cell.toArray(cella[i]);
+            slideCell(slidec, i, plane);
         } /* Cell */
 
-        return cella;
+        return plane;
     }
 
-    public final static Integer[][] generateChallenge(
+    /** Generate a challenge as a bitplane.
+     *
+     * Returns null if the calling thread is interrupted.
+     */
+    public final static byte[] generateChallengeBits(
         final char[] vseed,
         final char[] useed,
         final int[] plain,
@@ -164,131 +465,441 @@ public final class VCGenerator {
     ) throws
         ProviderException, GeneralSecurityException
     {
-        Cipher slidec = seedToCipher(useed);
-        Cipher cellc = seedToCipher(vseed);
+        return generateChallengeBits(vseed, useed, plain,
+                                     VCCrypto.FORMAT_DEFAULT, pcb);
+    }
 
-        Integer[][] cella = new Integer[cells][];
+    /** Generate a challenge as a bitplane in the given format.
+     *
+     * Returns null if the calling thread is interrupted.
+     */
+    public final static byte[] generateChallengeBits(
+        final char[] vseed,
+        final char[] useed,
+        final int[] plain,
+        final int format,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        return generateChallengeBits(vseed, useed, plain, format, null, pcb);
+    }
+
+    /** Generate a challenge as a bitplane, possibly in parallel.
+     *
+     * If exec is non-null and the vocabulary stream can seek, as
+     * for generateSlideBits, cells are generated concurrently on
+     * exec.  Either way, pcb is called
+     * once per finished cell, on the calling thread, with
+     * successive values 0 .. cells-1.
+     *
+     * Returns null if the calling thread is interrupted.
+     */
+    public final static byte[] generateChallengeBits(
+        final char[] vseed,
+        final char[] useed,
+        final int[] plain,
+        final int format,
+        final ExecutorService exec,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        VCKeystream cellc  = VCKeystream.open(vseed, format,
+                                              VCParameters.VCVOC_SIZE);
+
+        /* The slide never changes for a seed, so only the vocabulary
+         * stream is run per challenge.
+         */
+        final byte[] slide = bytes(cells*cellbytes);
+        VCSlideCache.get(useed, format, slide);
+
+        final byte[] plane = bytes(cells*cellbytes);
+
+        try {
+            if(exec != null && cellc.seekable()) {
+                boolean done = runCells(exec, new CellTask() {
+                    public void cell(int i) throws GeneralSecurityException {
+                        challengeCell(
+                            VCKeystream.open(vseed, format,
+                                             VCParameters.VCVOC_SIZE),
+                            i, plain[i], slide, plane);
+                    }
+                }, pcb);
+                return done ? plane : null;
+            }
+
+            return challengeCells(cellc, plain, slide, plane, pcb)
+                 ? plane : null;
+        } finally {
+            Arrays.fill(slide, (byte)0);
+        }
+    }
+
+    /** Generate a challenge into plane a cell at a time, in order.
+     *
+     * When pcb.progress(i) is called, cells 0 .. i of plane are
+     * final, so a caller may show them while the rest are made.
+     * Returns false if the calling thread is interrupted.
+     */
+    public final static boolean streamChallengeBits(
+        final char[] vseed,
+        final char[] useed,
+        final int[] plain,
+        final int format,
+        final byte[] plane,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        assert(plane.length == cells*cellbytes);
+
+        VCKeystream cellc  = VCKeystream.open(vseed, format,
+                                              VCParameters.VCVOC_SIZE);
+
+        final byte[] slide = bytes(cells*cellbytes);
+        VCSlideCache.get(useed, format, slide);
+
+        try {
+            return challengeCells(cellc, plain, slide, plane, pcb);
+        } finally {
+            Arrays.fill(slide, (byte)0);
+        }
+    }
+
+    private static final boolean
+    challengeCells(
+        final VCKeystream cellc,
+        final int[] plain,
+        final byte[] slide,
+        final byte[] plane,
+        final ProgCallback pcb
+    ) throws
+        GeneralSecurityException
+    {
+        for(int i = 0; i < cells; i++) {
+            if(Thread.interrupted()) {
+                return false;
+            }
+
+            challengeCell(cellc, i, plain[i], slide, plane);
+
+            if (pcb != null) { pcb.progress(i); }
+        } /* Cell */
+
+        return true;
+    }
+
+    /** Generate every vocabulary entry of every cell.
+     *
+     * The result holds cells*VCVOC_SIZE tiles of cellbytes each;
+     * entry e of cell i starts at (i*VCVOC_SIZE + e)*cellbytes.
+     * Returns null if the calling thread is interrupted.
+     */
+    public final static byte[]
+    generateTiles(
+        final char[] vseed,
+        final int format,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        VCKeystream cellc = VCKeystream.open(vseed, format,
+                                             VCParameters.VCVOC_SIZE);
+
+        final int tilebytes = VCParameters.VCVOC_SIZE*cellbytes;
+        final byte[] tiles = bytes(cells*tilebytes);
 
         for(int i = 0; i < cells; i++) {
             if(Thread.interrupted()) {
                 return null;
             }
-			assert(plain[i] < VCParameters.VCVOC_SIZE);
 
-            Vector<Integer> cell = new Vector<Integer>();
-            for(int j = 0; j < ccvpix; j++) {
-                byte[] srow = new byte[(crvpix+7)/8];
-                srow = slidec.update(srow);
-                assert(srow.length == (crvpix+7)/8);
-
-                byte[] vrow = null;
-                /* Get the right bits into vrow */
-                for(int k = 0; k <= plain[i]; k++) {
-                    vrow = new byte[(crvpix+7)/8];
-                    vrow = cellc.update(vrow);
-                    assert(vrow.length == (crvpix+7)/8);
-                }
+            final VCTrace tr = VCTrace.current();
+            final long t0 = VCTrace.now(tr);
+            cellc.entries(i, tiles, i*tilebytes);
+            VCTrace.phase(tr, VCTrace.KEYSTREAM, t0);
+
+            if (pcb != null) { pcb.progress(i); }
+        } /* Cell */
+
+        return tiles;
+    }
+
+    /** Assemble a challenge bitplane from generateTiles output and
+     * the user's slide bitplane; no keystream is consumed.
+     */
+    public final static byte[]
+    assembleChallengeBits(
+        final byte[] tiles,
+        final byte[] slide,
+        final int[] plain
+    ) {
+        final byte[] plane = bytes(cells*cellbytes);
 
-                if(plain[i] <= VCParameters.VCVOC_DISTINGUISHED) {
-                    /* Set the owned pixels in this row to
-                     * match those of srow; mutates vrow in place.
-                     */
-
-                    /* This design works for square cells */
-                    assert(crvpix == ccvpix);
-
-                    final int lix = j/8;
-                    final int lbm
-                        = (j%8 == 0)
-                        ? 0
-                        : ((byte)0x80) >> ((j%8)-1);
-
-                    final int rix = (ccvpix+7-j)/8-1;
-                    final int rbm
-                        = ((ccvpix-j)%8 == 0)
-                        ? 0
-                        : ~(((byte)0x80) >> ((ccvpix+7-j)%8));
-
-                    switch(plain[i]) {
-                        case VCParameters.VCVOC_DISTING_DOWN:
-                            if (j < ccvpix/2) {
-                                if(lix == rix) {
-                                    vrow[lix] &= lbm | rbm;
-                                    vrow[lix] |= srow[lix] & ~(lbm | rbm);
-                                } else {
-                                    vrow[lix] &= lbm;
-                                    vrow[lix] |= srow[lix] & ~lbm;
-                                    vrow[rix] &= rbm;
-                                    vrow[rix] |= srow[rix] & ~rbm;
-                                }
-                            }
-                            for(int k = lix+1; k < rix; k++)
-                                vrow[k] = srow[k];
-                            break;
-                        case VCParameters.VCVOC_DISTING_UP:
-                            if (j > ccvpix/2) {
-                                if(lix == rix) {
-                                    vrow[lix] &= ~lbm | ~rbm;
-                                    vrow[lix] |= srow[lix] & (lbm & rbm);
-                                } else {
-                                    vrow[lix] &= ~lbm;
-                                    vrow[lix] |= srow[lix] & lbm;
-                                    vrow[rix] &= ~rbm;
-                                    vrow[rix] |= srow[rix] & rbm;
-                                }
-                            }
-                            for(int k = rix+1; k < lix; k++)
-                                vrow[k] = srow[k];
-                            break;
-                        case VCParameters.VCVOC_DISTING_RIGHT:
-                            if (j < ccvpix/2) {
-                                vrow[lix] &= ~lbm;
-                                vrow[lix] |= srow[lix] & lbm;
-                                for(int k = 0; k < lix; k++)
-                                    vrow[k] = srow[k];
-                            } else {
-                                vrow[rix] &= rbm;
-                                vrow[rix] |= srow[rix] & ~rbm;
-                                for(int k = 0; k < rix; k++)
-                                    vrow[k] = srow[k];
-                            }
-                            break;
-                        case VCParameters.VCVOC_DISTING_LEFT:
-                            if (j < ccvpix/2) {
-                                vrow[rix] &= ~rbm;
-                                vrow[rix] |= srow[rix] & rbm;
-                                for(int k = rix+1; k < (ccvpix+7)/8; k++)
-                                    vrow[k] = srow[k];
-                            } else {
-                                vrow[lix] &= lbm;
-                                vrow[lix] |= srow[lix] & ~lbm;
-                                for(int k = lix+1; k < (ccvpix+7)/8; k++)
-                                    vrow[k] = srow[k];
-                            }
-                            break;
+        for(int i = 0; i < cells; i++) {
+            final int p = plain[i];
+            assert(p < VCParameters.VCVOC_SIZE);
+
+            System.arraycopy(tiles, (i*VCParameters.VCVOC_SIZE + p)*cellbytes,
+                             plane, i*cellbytes, cellbytes);
+
+            if(p <= VCParameters.VCVOC_DISTINGUISHED) {
+                maskCell(plane, i, p, slide, i*cellbytes);
+            }
+        } /* Cell */
+
+        return plane;
+    }
+
+    private static final void
+    slideCell(
+        final VCKeystream slidec,
+        final int i,
+        final byte[] plane
+    ) throws
+        GeneralSecurityException
+    {
+        final VCTrace tr = VCTrace.current();
+        final long t0 = VCTrace.now(tr);
+        slidec.cell(i, 0, plane, i*cellbytes);
+        VCTrace.phase(tr, VCTrace.KEYSTREAM, t0);
+    }
+
+    /** Fill cell i of plane with vocabulary entry p, owned pixels
+     * taken from the slide bitplane.
+     */
+    private static final void
+    challengeCell(
+        final VCKeystream cellc,
+        final int i,
+        final int p,
+        final byte[] slide,
+        final byte[] plane
+    ) throws
+        GeneralSecurityException
+    {
+		assert(p < VCParameters.VCVOC_SIZE);
+
+        /* Get the right bits into the plane */
+        final VCTrace tr = VCTrace.current();
+        final long t0 = VCTrace.now(tr);
+        cellc.cell(i, p, plane, i*cellbytes);
+        VCTrace.phase(tr, VCTrace.KEYSTREAM, t0);
+
+        if(p > VCParameters.VCVOC_DISTINGUISHED) {
+            return;
+        }
+
+        maskCell(plane, i, p, slide, i*cellbytes);
+    }
+
+    /*
+     * Distinguished entry p owns a triangle of each cell pointing the
+     * way it names: DOWN hangs from the top edge, RIGHT grows from
+     * the left edge, and so on.  Those pixels come from the user's
+     * slide rather than the vocabulary.  masks[p] has
+     * one bit per owned pixel, row by row, packed big-endian into
+     * rowwords longs per row so that the composition below is the
+     * same few word operations for every row.
+     */
+    private static final int rowwords = (rowbytes+7)/8;
+    private static final long[][] masks
+        = new long[VCParameters.VCVOC_DISTINGUISHED+1][ccvpix*rowwords];
+    static {
+        /* This design works for square cells */
+        assert(crvpix == ccvpix);
+
+        for(int p = 0; p < masks.length; p++) {
+            for(int j = 0; j < ccvpix; j++) {
+                for(int x = 0; x < crvpix; x++) {
+                    if(!owned(p, x, j)) {
+                        continue;
                     }
+                    /* Octet x/8 of the row, within its word */
+                    final int w = x/64;
+                    final int n = Math.min(8, rowbytes - w*8);
+                    final int sh = (n - 1 - (x%64)/8)*8 + 7 - x%8;
+                    masks[p][j*rowwords + w] |= 1L << sh;
                 }
+            }
+        }
+    }
 
-                /* Set pixels in resulting image */
-                Vector<Integer> vrowvc = bitsToVCPixels(vrow);
-                cell.addAll(vrowvc);
-                
-                /* Drain the remaining bits from the CSPRNG */
-                for(int k = plain[i] + 1;
-                        k < VCParameters.VCVOC_SIZE;
-                        k++) {
-                    vrow = new byte[(crvpix+7)/8];
-                    vrow = cellc.update(vrow);
-                    assert(vrow.length == (crvpix+7)/8);
+    private static final boolean
+    owned(final int p, final int x, final int j) {
+        final int h = ccvpix/2;
+        switch(p) {
+            case VCParameters.VCVOC_DISTING_DOWN:
+                return j < h && j <= x && x < ccvpix-j;
+            case VCParameters.VCVOC_DISTING_UP:
+                return j > h && ccvpix-j <= x && x < j;
+            case VCParameters.VCVOC_DISTING_RIGHT:
+                return x < Math.min(j, ccvpix-j);
+            case VCParameters.VCVOC_DISTING_LEFT:
+                return x >= Math.max(j, ccvpix-j);
+        }
+        return false;
+    }
+
+    /* Read n <= 8 octets at b[o] as a big-endian word */
+    private static final long
+    word(final byte[] b, final int o, final int n) {
+        long v = 0;
+        for(int k = 0; k < n; k++) {
+            v = (v << 8) | (b[o+k] & 0xFF);
+        }
+        return v;
+    }
+
+    /** Copy the pixels that distinguished entry p owns in cell i of
+     * plane from the slide cell at slide[soff].
+     */
+    static final void
+    maskCell(
+        final byte[] plane,
+        final int i,
+        final int p,
+        final byte[] slide,
+        final int soff
+    ) {
+        final VCTrace tr = VCTrace.current();
+        final long t0 = VCTrace.now(tr);
+        final long[] m = masks[p];
+
+        int vo = i*cellbytes;
+        int so = soff;
+        for(int j = 0, mi = 0; j < ccvpix; j++) {
+            for(int b = 0; b < rowbytes; b += 8, mi++) {
+                final int n = Math.min(8, rowbytes - b);
+
+                long r = (word(plane, vo+b, n) & ~m[mi])
+                        | (word(slide, so+b, n) & m[mi]);
+
+                for(int k = n - 1; k >= 0; k--, r >>>= 8) {
+                    plane[vo+b+k] = (byte)r;
                 }
-            } /* Row */
-            cella[i] = new Integer[cell.size()];
-            cell.toArray(cella[i]);
+            }
+            vo += rowbytes;
+            so += rowbytes;
+        } /* Row */
 
-            if (pcb != null) { pcb.progress(i); }
-        } /* Cell */
+        VCTrace.phase(tr, VCTrace.MASK, t0);
+    }
 
-        return cella;
+    /** Count the pixels that distinguished entry p owns in cell i of
+     * plane which differ from the slide cell at slide[soff]: none if
+     * maskCell put p there, and about half of maskSize(p) otherwise.
+     */
+    static final int
+    maskMismatch(
+        final byte[] plane,
+        final int i,
+        final int p,
+        final byte[] slide,
+        final int soff
+    ) {
+        final long[] m = masks[p];
+
+        int d = 0;
+        int vo = i*cellbytes;
+        int so = soff;
+        for(int j = 0, mi = 0; j < ccvpix; j++) {
+            for(int b = 0; b < rowbytes; b += 8, mi++) {
+                final int n = Math.min(8, rowbytes - b);
+                d += Long.bitCount((word(plane, vo+b, n)
+                                    ^ word(slide, so+b, n)) & m[mi]);
+            }
+            vo += rowbytes;
+            so += rowbytes;
+        }
+        return d;
+    }
+
+    /** Pixels per cell owned by distinguished entry p */
+    static final int
+    maskSize(final int p) {
+        int n = 0;
+        for(long w : masks[p]) {
+            n += Long.bitCount(w);
+        }
+        return n;
+    }
+
+    /* A new plane (or the like) of n octets, counted for VCTrace */
+    private static final byte[]
+    bytes(final int n) {
+        VCTrace.alloc(VCTrace.current(), n);
+        return new byte[n];
+    }
+
+    /* Work for a single cell, so that cells can be farmed out */
+    private interface CellTask {
+        void cell(int i) throws GeneralSecurityException;
+    }
+
+    /** Run t for every cell on exec.
+     *
+     * Progress is reported from the calling thread in completion
+     * order.  Returns false, with any outstanding cells cancelled,
+     * if the calling thread is interrupted.
+     */
+    private static final boolean
+    runCells(
+        final ExecutorService exec,
+        final CellTask t,
+        final ProgCallback pcb
+    ) throws
+        ProviderException, GeneralSecurityException
+    {
+        /* Cells are traced as the caller's work */
+        final VCTrace tr = VCTrace.current();
+
+        CompletionService<Void> ecs
+            = new ExecutorCompletionService<Void>(exec);
+        List<Future<Void>> fs = new ArrayList<Future<Void>>(cells);
+
+        try {
+            for(int i = 0; i < cells; i++) {
+                final int ci = i;
+                fs.add(ecs.submit(new Callable<Void>() {
+                    public Void call() throws GeneralSecurityException {
+                        VCTrace.attach(tr);
+                        try {
+                            t.cell(ci);
+                        } finally {
+                            VCTrace.detach(tr);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for(int i = 0; i < cells; i++) {
+                ecs.take().get();
+                if (pcb != null) { pcb.progress(i); }
+            }
+        } catch (InterruptedException ie) {
+            /* Let the caller, too, see that it was asked to stop */
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ee) {
+            Throwable c = ee.getCause();
+            if(c instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) c;
+            } else if (c instanceof RuntimeException) {
+                throw (RuntimeException) c;
+            } else if (c instanceof Error) {
+                throw (Error) c;
+            }
+            throw new ProviderException(c);
+        } finally {
+            for(Future<Void> f : fs) {
+                f.cancel(true);
+            }
+        }
+
+        return true;
     }
 
     public final static int[][] vcArrayToPixels(Integer[][] p) {
@@ -313,23 +924,4 @@ public final class VCGenerator {
         return res;
     }
 
-    private static final Cipher
-    seedToCipher(final char[] seed)
-    throws ProviderException, GeneralSecurityException
-    {
-        SecretKeyFactory skf =
-            SecretKeyFactory.getInstance(VCParameters.CSKEYFACT,
-                                         VCParameters.CSPROV);
-
-        byte[] salt = { 0x22, 0x24 };
-        PBEKeySpec pks = new PBEKeySpec(seed, salt, 1024);
-        SecretKey sk = skf.generateSecret(pks);
-
-        Cipher c = Cipher.getInstance(VCParameters.CSPRNG,
-                                      VCParameters.CSPROV);  
-        c.init(Cipher.ENCRYPT_MODE, sk);
-
-        return c;
-    }
 }
-
@@ -0,0 +1,187 @@
+/** Cache of PBE-derived CSPRNG keys.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.generators.PKCS12ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/*
+ * Running the KDF is a large fixed cost of every slide or challenge,
+ * and the same seed pair is reused for every retry of a login.  We
+ * therefore remember the derived key and IV, indexed by a digest of
+ * the seed (never the seed itself), in a small LRU map.  Key material
+ * is overwritten when it falls out of the map or the cache is cleared.
+ *
+ * That is the cache's own copy only.  Each DerivedKey handed out is
+ * built around copies of its own (SecretKeySpec and IvParameterSpec
+ * copy what they are given, and will not give it back to overwrite),
+ * and the Ciphers and VCKeystreams made from it keep the key, or its
+ * schedule, for as long as they live.  Those copies are left to the
+ * garbage collector.  Callers that take getEncoded() copies of their
+ * own overwrite them once used, as VCCheckpoints and VCTileStore do.
+ */
+final class VCKeyCache {
+
+        /** A derived key, ready to hand to Cipher.init; a copy, which
+         * is not overwritten when the cache's is */
+    static final class DerivedKey {
+        final SecretKey key;
+        final IvParameterSpec iv;
+
+        DerivedKey(byte[] k, byte[] iv) {
+            this.key = new SecretKeySpec(k, VCCrypto.CSKEYALG);
+            this.iv  = new IvParameterSpec(iv);
+        }
+    }
+
+    private static final class Material {
+        final byte[] key;
+        final byte[] iv;
+
+        Material(byte[] key, byte[] iv) {
+            this.key = key;
+            this.iv  = iv;
+        }
+
+        void wipe() {
+            Arrays.fill(key, (byte)0);
+            Arrays.fill(iv, (byte)0);
+        }
+    }
+
+    /* Entries kept; guarded by cache */
+    private static int limit = VCCrypto.KEYCACHE_SIZE;
+
+    private static final LinkedHashMap<ByteBuffer,Material> cache
+        = new LinkedHashMap<ByteBuffer,Material>(
+                VCCrypto.KEYCACHE_SIZE+1, 0.75f, true) {
+            protected boolean
+            removeEldestEntry(Map.Entry<ByteBuffer,Material> e) {
+                if(size() > limit) {
+                    e.getValue().wipe();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    private VCKeyCache() { }
+
+    /** Keep up to n entries hereafter, dropping (and overwriting) the
+     * least recently used of any beyond that now.
+     */
+    static final void
+    setSize(final int n) {
+        synchronized(cache) {
+            limit = n;
+            Iterator<Map.Entry<ByteBuffer,Material>> i
+                = cache.entrySet().iterator();
+            while(cache.size() > n && i.hasNext()) {
+                i.next().getValue().wipe();
+                i.remove();
+            }
+        }
+    }
+
+    /** Fetch the key for a seed, running the KDF only on a miss.  The
+     * result is the caller's own copy; see above for its lifetime.
+     */
+    static final DerivedKey
+    get(final char[] seed)
+    throws GeneralSecurityException
+    {
+        final ByteBuffer id = fingerprint(seed);
+
+        synchronized(cache) {
+            Material m = cache.get(id);
+            if(m != null) {
+                return new DerivedKey(m.key, m.iv);
+            }
+        }
+
+        /* Derive without holding the lock; two threads racing on the
+         * same seed merely both pay for it once.
+         */
+        final VCTrace tr = VCTrace.current();
+        final long t0 = VCTrace.now(tr);
+        Material m = derive(seed);
+        VCTrace.phase(tr, VCTrace.KDF, t0);
+        VCTrace.count(tr, VCTrace.CACHE_MISSES, 1);
+        synchronized(cache) {
+            Material o = cache.get(id);
+            if(o != null) {
+                m.wipe();
+                m = o;
+            } else {
+                cache.put(id, m);
+            }
+            return new DerivedKey(m.key, m.iv);
+        }
+    }
+
+    /** Forget (and overwrite) every cached key. */
+    static final void
+    clear() {
+        synchronized(cache) {
+            Iterator<Material> i = cache.values().iterator();
+            while(i.hasNext()) {
+                i.next().wipe();
+                i.remove();
+            }
+        }
+    }
+
+    /** Digest identifying a seed without retaining it. */
+    static final ByteBuffer
+    fingerprint(final char[] seed)
+    throws GeneralSecurityException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for(int i = 0; i < seed.length; i++) {
+            md.update((byte)(seed[i] >> 8));
+            md.update((byte)(seed[i]));
+        }
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    /*
+     * This is what CSKEYFACT (BouncyCastle's
+     * PBEWithSHAAnd128BitAES-CBC-BC) does internally: a PKCS#12 KDF
+     * over SHA-1 yielding a 128-bit key and a 128-bit IV.  We use the
+     * lightweight API directly so that we get to see, and later
+     * scrub, the raw bytes.
+     */
+    private static final Material
+    derive(final char[] seed) {
+        byte[] pw = PBEParametersGenerator.PKCS12PasswordToBytes(seed);
+
+        PKCS12ParametersGenerator g
+            = new PKCS12ParametersGenerator(new SHA1Digest());
+        g.init(pw, VCCrypto.CSKDF_SALT, VCCrypto.CSKDF_ITERS);
+        ParametersWithIV p = (ParametersWithIV)
+            g.generateDerivedParameters(VCCrypto.CSKEYBITS,
+                                        VCCrypto.CSKEYBITS);
+        Arrays.fill(pw, (byte)0);
+
+        return new Material(((KeyParameter)p.getParameters()).getKey(),
+                            p.getIV());
+    }
+}
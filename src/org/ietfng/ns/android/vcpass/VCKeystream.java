@@ -0,0 +1,392 @@
+/** Keystream layouts for the slide and vocabulary CSPRNGs.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.bouncycastle.crypto.SkippingStreamCipher;
+
+/*
+ * Both streams are addressed as (cell, row, entry), where the slide
+ * stream has only one entry per row.  Rows are rowbytes octets.
+ *
+ * Callers fetch a whole cell's worth of one entry (ccvpix rows,
+ * cellbytes octets) at a time, so that the underlying Cipher sees a
+ * few large update() calls rather than one per five-octet row.
+ *
+ * FORMAT_CFB8 is the original layout: a single AES/CFB8 stream
+ * clocked for every (cell, row, entry) in that order, so reaching a
+ * row means generating and discarding everything before it.
+ * Callers must therefore ask for cells in ascending order, unless a
+ * previous full pass over the same stream has left checkpoints of the
+ * cipher state at each cell boundary (see VCCheckpoints), in which
+ * case each cell is resumed from its checkpoint and cells may come in
+ * any order.
+ *
+ * FORMAT_CTR computes each row directly: row n of the stream is the
+ * first rowbytes octets of AES_k(IV + n), i.e. the n-th block of
+ * AES-CTR started at the derived IV, where
+ *      n = (cell*ccvpix + row)*entries + entry
+ * mirrors the CFB8 clocking order.  Cells may be requested in any
+ * order.
+ *
+ * FORMAT_CHACHA20 keeps the CFB8 clocking order but draws the octets
+ * from ChaCha20 (RFC 7539, zero nonce) keyed with the derived key and
+ * IV together, so row n starts at octet n*rowbytes of that stream.
+ * ChaCha20 can start at any 64-octet block, so cells may be requested
+ * in any order.
+ *
+ * Which implementation computes a format is up to VCKeystreamEngine.
+ */
+abstract class VCKeystream {
+
+    final int entries;
+
+    VCKeystream(int entries) {
+        this.entries = entries;
+    }
+
+    /** Write the cellbytes octets of entry in cell at out[off] */
+    abstract void
+    cell(int cell, int entry, byte[] out, int off)
+    throws GeneralSecurityException;
+
+    /** Write every entry of cell at out[off], one after another,
+     * each cellbytes octets.
+     */
+    void
+    entries(int cell, byte[] out, int off)
+    throws GeneralSecurityException
+    {
+        for(int e = 0; e < entries; e++, off += VCGenerator.cellbytes) {
+            cell(cell, e, out, off);
+        }
+    }
+
+    /** May cells be requested in any order? */
+    abstract boolean seekable();
+
+    final long
+    index(int cell, int row, int entry) {
+        assert(entry < entries);
+        return ((long)cell*VCGenerator.ccvpix + row)*entries + entry;
+    }
+
+    /** Open the keystream for a seed in the given format. */
+    static final VCKeystream
+    open(final char[] seed, final int format, final int entries)
+    throws GeneralSecurityException
+    {
+        return VCKeystreamEngine.forFormat(format)
+                    .open(VCKeyCache.get(seed),
+                          VCCheckpoints.id(seed, entries), entries);
+    }
+
+    /* Gather the rows of entry from buf, holding a cell of every
+     * entry interleaved row by row as clocked.
+     */
+    final void
+    slice(byte[] buf, int entry, byte[] out, int off) {
+        final int rb = VCGenerator.rowbytes;
+        for(int j = 0, bo = entry*rb;
+                j < VCGenerator.ccvpix;
+                j++, bo += entries*rb, off += rb) {
+            System.arraycopy(buf, bo, out, off, rb);
+        }
+    }
+
+    /* Count a stream's two scratch buffers, of n octets in all */
+    static final void
+    buffers(int n) {
+        final VCTrace tr = VCTrace.current();
+        VCTrace.alloc(tr, n);
+        VCTrace.count(tr, VCTrace.ALLOCS, 1);     /* the second */
+    }
+
+    /* out[off ..] = iv + ix, big-endian, modulo 2^(8*iv.length) */
+    static final void
+    add(byte[] iv, long ix, byte[] out, int off) {
+        int carry = 0;
+        for(int i = iv.length - 1; i >= 0; i--) {
+            int s = (iv[i] & 0xFF) + (int)(ix & 0xFF) + carry;
+            out[off + i] = (byte)s;
+            carry = s >> 8;
+            ix >>>= 8;
+        }
+    }
+
+    static final class Cfb8 extends VCKeystream {
+        private final Cipher c;
+        /* Non-null iff resuming cells from checkpoints */
+        private final SecretKey key;
+        /* Register at the start of each cell; read when resuming,
+         * else filled in as cells go by.
+         */
+        private final byte[] cps;
+        /* Where to publish cps once complete; null when done or
+         * resuming.
+         */
+        private ByteBuffer id;
+        /* One cell of every entry, as clocked */
+        private final byte[] zeros;
+        private final byte[] buf;
+        private int next = 0;
+
+        /* Run the stream from the start, recording checkpoints */
+        Cfb8(Cipher c, byte[] iv, ByteBuffer id, int entries) {
+            this(c, null, new byte[VCGenerator.cells*VCCheckpoints.REGBYTES],
+                 entries);
+            System.arraycopy(iv, 0, cps, 0, VCCheckpoints.REGBYTES);
+            this.id = id;
+        }
+
+        /* Resume any cell from the given checkpoints */
+        Cfb8(Cipher c, SecretKey key, byte[] cps, int entries) {
+            super(entries);
+            this.c = c;
+            this.key = key;
+            this.cps = cps;
+            this.zeros = new byte[VCGenerator.cellbytes*entries];
+            this.buf = new byte[VCGenerator.cellbytes*entries];
+            buffers(zeros.length + buf.length);
+        }
+
+        boolean seekable() { return key != null; }
+
+        void
+        cell(int cell, int entry, byte[] out, int off)
+        throws GeneralSecurityException
+        {
+            assert(entry < entries);
+
+            skip(cell);
+
+            if(entries == 1) {
+                clock(cell, out, off);
+                return;
+            }
+
+            clock(cell, buf, 0);
+            slice(buf, entry, out, off);
+        }
+
+        void
+        entries(int cell, byte[] out, int off)
+        throws GeneralSecurityException
+        {
+            skip(cell);
+            clock(cell, buf, 0);
+
+            for(int e = 0; e < entries; e++, off += VCGenerator.cellbytes) {
+                slice(buf, e, out, off);
+            }
+        }
+
+        /* Clock, and discard, every cell before this one */
+        private void
+        skip(int cell)
+        throws GeneralSecurityException
+        {
+            if(seekable()) {
+                return;
+            }
+
+            assert(cell >= next);
+            while(next < cell) {
+                clock(next, buf, 0);
+            }
+        }
+
+        /* Run every entry of cell through the cipher into dst */
+        private void
+        clock(int cell, byte[] dst, int doff)
+        throws GeneralSecurityException
+        {
+            final int rb = VCCheckpoints.REGBYTES;
+
+            if(seekable()) {
+                c.init(Cipher.ENCRYPT_MODE, key,
+                       new IvParameterSpec(cps, cell*rb, rb));
+            }
+
+            int n = c.update(zeros, 0, zeros.length, dst, doff);
+            assert(n == zeros.length);
+            VCTrace.count(VCTrace.current(), VCTrace.KEYSTREAM_BYTES, n);
+
+            if(seekable()) {
+                return;
+            }
+
+            next = cell + 1;
+            if(id != null && next < VCGenerator.cells) {
+                /* The register is now the last rb octets out */
+                System.arraycopy(dst, doff + n - rb, cps, next*rb, rb);
+                if(next == VCGenerator.cells - 1) {
+                    VCCheckpoints.put(id, cps);
+                    id = null;
+                }
+            }
+        }
+    }
+
+    static final class Ctr extends VCKeystream {
+        private final Cipher c;
+        private final byte[] iv;
+        /* Counter blocks for, and then keystream of, one cell */
+        private final byte[] ctrs;
+        private final byte[] blks;
+
+        Ctr(Cipher c, byte[] iv, int entries) {
+            super(entries);
+            assert(VCGenerator.rowbytes <= iv.length);
+            this.c = c;
+            this.iv = iv;
+            this.ctrs = new byte[VCGenerator.ccvpix*iv.length];
+            this.blks = new byte[VCGenerator.ccvpix*iv.length];
+            buffers(ctrs.length + blks.length);
+        }
+
+        boolean seekable() { return true; }
+
+        void
+        cell(int cell, int entry, byte[] out, int off)
+        throws GeneralSecurityException
+        {
+            final int bl = iv.length;
+
+            for(int j = 0; j < VCGenerator.ccvpix; j++) {
+                add(iv, index(cell, j, entry), ctrs, j*bl);
+            }
+
+            int n = c.doFinal(ctrs, 0, ctrs.length, blks, 0);
+            assert(n == blks.length);
+            VCTrace.count(VCTrace.current(), VCTrace.KEYSTREAM_BYTES, n);
+
+            final int rb = VCGenerator.rowbytes;
+            for(int j = 0; j < VCGenerator.ccvpix; j++, off += rb) {
+                System.arraycopy(blks, j*bl, out, off, rb);
+            }
+        }
+    }
+
+    /* FORMAT_CTR by way of a Cipher in CTR mode, which computes the
+     * rows of every entry of a cell at once.
+     */
+    static final class CtrMode extends VCKeystream {
+        private final Cipher c;
+        private final SecretKey key;
+        private final byte[] iv;
+        private final byte[] ctr;
+        private final byte[] zeros;
+        private final byte[] blks;
+
+        CtrMode(Cipher c, SecretKey key, byte[] iv, int entries) {
+            super(entries);
+            assert(VCGenerator.rowbytes <= iv.length);
+            this.c = c;
+            this.key = key;
+            this.iv = iv;
+            this.ctr = new byte[iv.length];
+            this.zeros = new byte[VCGenerator.ccvpix*entries*iv.length];
+            this.blks = new byte[VCGenerator.ccvpix*entries*iv.length];
+            buffers(zeros.length + blks.length);
+        }
+
+        boolean seekable() { return true; }
+
+        void
+        cell(int cell, int entry, byte[] out, int off)
+        throws GeneralSecurityException
+        {
+            run(cell);
+            pick(entry, out, off);
+        }
+
+        void
+        entries(int cell, byte[] out, int off)
+        throws GeneralSecurityException
+        {
+            run(cell);
+            for(int e = 0; e < entries; e++, off += VCGenerator.cellbytes) {
+                pick(e, out, off);
+            }
+        }
+
+        private void
+        run(int cell)
+        throws GeneralSecurityException
+        {
+            add(iv, index(cell, 0, 0), ctr, 0);
+            c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ctr));
+            int n = c.doFinal(zeros, 0, zeros.length, blks, 0);
+            assert(n == blks.length);
+            VCTrace.count(VCTrace.current(), VCTrace.KEYSTREAM_BYTES, n);
+        }
+
+        private void
+        pick(int entry, byte[] out, int off) {
+            final int bl = iv.length;
+            final int rb = VCGenerator.rowbytes;
+            for(int j = 0, bo = entry*bl;
+                    j < VCGenerator.ccvpix;
+                    j++, bo += entries*bl, off += rb) {
+                System.arraycopy(blks, bo, out, off, rb);
+            }
+        }
+    }
+
+    static final class ChaCha extends VCKeystream {
+        private final SkippingStreamCipher c;
+        private final byte[] zeros;
+        private final byte[] buf;
+
+        ChaCha(SkippingStreamCipher c, int entries) {
+            super(entries);
+            this.c = c;
+            this.zeros = new byte[VCGenerator.cellbytes*entries];
+            this.buf = new byte[VCGenerator.cellbytes*entries];
+            buffers(zeros.length + buf.length);
+        }
+
+        boolean seekable() { return true; }
+
+        void
+        cell(int cell, int entry, byte[] out, int off)
+        {
+            assert(entry < entries);
+
+            if(entries == 1) {
+                run(cell, out, off);
+                return;
+            }
+
+            run(cell, buf, 0);
+            slice(buf, entry, out, off);
+        }
+
+        void
+        entries(int cell, byte[] out, int off)
+        {
+            run(cell, buf, 0);
+            for(int e = 0; e < entries; e++, off += VCGenerator.cellbytes) {
+                slice(buf, e, out, off);
+            }
+        }
+
+        private void
+        run(int cell, byte[] dst, int doff) {
+            c.seekTo((long)cell*zeros.length);
+            int n = c.processBytes(zeros, 0, zeros.length, dst, doff);
+            assert(n == zeros.length);
+            VCTrace.count(VCTrace.current(), VCTrace.KEYSTREAM_BYTES, n);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/** Implementations of the keystream formats.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.crypto.engines.ChaCha7539Engine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/*
+ * A format fixes which octets a seed yields; an engine is one way of
+ * computing them.  The same format may be computed by BouncyCastle's
+ * Java AES or by whatever the platform's default provider offers
+ * (on a desktop JDK, SunJCE, whose AES runs on the CPU's AES
+ * instructions), and which is faster depends on the machine.
+ *
+ * So the first time a format is asked for, every engine for it is run
+ * over a few cells under a throwaway key.  Engines that are missing
+ * (older Android's built-in BouncyCastle has no ChaCha20) or that
+ * disagree with the first working engine are dropped, and the fastest
+ * of the rest is used from then on.  use() overrides the choice.
+ *
+ * That takes a while, and is done with no lock held, so that nobody
+ * waits on it but whoever started it (VCCrypto.warmUp, usually).
+ * Anyone else who wants the format meanwhile gets its first engine in
+ * ALL, which is BouncyCastle's; the octets are the same either way.
+ */
+abstract class VCKeystreamEngine {
+
+    final String name;
+    final int format;
+
+    VCKeystreamEngine(String name, int format) {
+        this.name = name;
+        this.format = format;
+    }
+
+    /** Open a keystream under dk.  id names the stream for
+     * VCCheckpoints, or is null to neither use nor record any.
+     */
+    abstract VCKeystream
+    open(VCKeyCache.DerivedKey dk, ByteBuffer id, int entries)
+    throws GeneralSecurityException;
+
+    public String toString() { return name; }
+
+    /* * * * * * Engines * * * * * */
+
+    /* The original: CFB8 over BouncyCastle's AES */
+    static final VCKeystreamEngine BC_CFB8
+        = new Cfb8Engine("bc-cfb8", VCCrypto.provider());
+    static final VCKeystreamEngine JCE_CFB8
+        = new Cfb8Engine("jce-cfb8", null);
+
+    static final VCKeystreamEngine BC_CTR
+        = new VCKeystreamEngine("bc-ctr", VCCrypto.FORMAT_CTR) {
+            VCKeystream
+            open(VCKeyCache.DerivedKey dk, ByteBuffer id, int entries)
+            throws GeneralSecurityException
+            {
+                Cipher c = Cipher.getInstance(VCCrypto.CSPRNG_CTR,
+                                              VCCrypto.provider());
+                c.init(Cipher.ENCRYPT_MODE, dk.key);
+                return new VCKeystream.Ctr(c, dk.iv.getIV(), entries);
+            }
+        };
+
+    static final VCKeystreamEngine JCE_CTR
+        = new VCKeystreamEngine("jce-ctr", VCCrypto.FORMAT_CTR) {
+            VCKeystream
+            open(VCKeyCache.DerivedKey dk, ByteBuffer id, int entries)
+            throws GeneralSecurityException
+            {
+                Cipher c = Cipher.getInstance(VCCrypto.CSPRNG_CTRMODE);
+                return new VCKeystream.CtrMode(c, dk.key, dk.iv.getIV(),
+                                               entries);
+            }
+        };
+
+    static final VCKeystreamEngine BC_CHACHA20
+        = new VCKeystreamEngine("bc-chacha20",
+                                VCCrypto.FORMAT_CHACHA20) {
+            VCKeystream
+            open(VCKeyCache.DerivedKey dk, ByteBuffer id, int entries)
+            {
+                byte[] k = dk.key.getEncoded();
+                byte[] iv = dk.iv.getIV();
+                byte[] kk = new byte[k.length + iv.length];
+                System.arraycopy(k, 0, kk, 0, k.length);
+                System.arraycopy(iv, 0, kk, k.length, iv.length);
+
+                ChaCha7539Engine c = new ChaCha7539Engine();
+                c.init(true, new ParametersWithIV(new KeyParameter(kk),
+                                                  new byte[12]));
+                Arrays.fill(k, (byte)0);
+                Arrays.fill(kk, (byte)0);
+
+                return new VCKeystream.ChaCha(c, entries);
+            }
+        };
+
+    /** Every engine, in order of preference among equals. */
+    static final VCKeystreamEngine[] ALL = {
+        BC_CFB8, JCE_CFB8, BC_CTR, JCE_CTR, BC_CHACHA20
+    };
+
+    private static final class Cfb8Engine extends VCKeystreamEngine {
+        private final Provider prov;
+
+        Cfb8Engine(String name, Provider prov) {
+            super(name, VCCrypto.FORMAT_CFB8);
+            this.prov = prov;
+        }
+
+        VCKeystream
+        open(VCKeyCache.DerivedKey dk, ByteBuffer id, int entries)
+        throws GeneralSecurityException
+        {
+            Cipher c = (prov == null)
+                     ? Cipher.getInstance(VCCrypto.CSPRNG)
+                     : Cipher.getInstance(VCCrypto.CSPRNG, prov);
+
+            byte[] cps = (id == null) ? null : VCCheckpoints.get(id);
+            if(cps != null) {
+                return new VCKeystream.Cfb8(c, dk.key, cps, entries);
+            }
+            c.init(Cipher.ENCRYPT_MODE, dk.key, dk.iv);
+            return new VCKeystream.Cfb8(c, dk.iv.getIV(), id, entries);
+        }
+    }
+
+    /* * * * * * Selection * * * * * */
+
+    /* Chosen engine, by format; null until asked for */
+    private static final VCKeystreamEngine[] chosen
+        = new VCKeystreamEngine[VCCrypto.FORMAT_CHACHA20+1];
+    /* Formats being benchmarked; guarded by chosen */
+    private static final boolean[] calibrating
+        = new boolean[chosen.length];
+
+    /** The engine to use for format, benchmarking on first use; while
+     * another thread is benchmarking it, the format's first engine.
+     */
+    static final VCKeystreamEngine
+    forFormat(final int format)
+    throws NoSuchAlgorithmException
+    {
+        if(format <= 0 || format >= chosen.length) {
+            throw new NoSuchAlgorithmException(
+                            "Unknown keystream format " + format);
+        }
+
+        synchronized(chosen) {
+            if(chosen[format] != null) {
+                return chosen[format];
+            }
+            if(calibrating[format]) {
+                return first(format);
+            }
+            calibrating[format] = true;
+        }
+
+        VCKeystreamEngine e;
+        try {
+            e = calibrate(format);
+        } finally {
+            synchronized(chosen) {
+                calibrating[format] = false;
+            }
+        }
+
+        synchronized(chosen) {
+            /* Unless use() got there first */
+            if(chosen[format] == null) {
+                chosen[format] = e;
+            }
+            return chosen[format];
+        }
+    }
+
+    /* The first engine in ALL for format */
+    private static final VCKeystreamEngine
+    first(final int format)
+    throws NoSuchAlgorithmException
+    {
+        for(int i = 0; i < ALL.length; i++) {
+            if(ALL[i].format == format) {
+                return ALL[i];
+            }
+        }
+        throw new NoSuchAlgorithmException(
+                        "No engine for keystream format " + format);
+    }
+
+    /** Use e for its format from now on. */
+    static final void
+    use(final VCKeystreamEngine e) {
+        use(e.format, e);
+    }
+
+    /** Use e for format from now on, or choose again on next use if
+     * e is null; returns the engine used until now, if any, so that
+     * it can be put back.
+     */
+    static final VCKeystreamEngine
+    use(final int format, final VCKeystreamEngine e) {
+        synchronized(chosen) {
+            VCKeystreamEngine prev = chosen[format];
+            chosen[format] = e;
+            return prev;
+        }
+    }
+
+    /** Look an engine up by name, or return null. */
+    static final VCKeystreamEngine
+    named(final String name) {
+        for(int i = 0; i < ALL.length; i++) {
+            if(ALL[i].name.equals(name)) {
+                return ALL[i];
+            }
+        }
+        return null;
+    }
+
+    private static final VCKeystreamEngine
+    calibrate(final int format)
+    throws NoSuchAlgorithmException
+    {
+        byte[] kb = new byte[VCCrypto.CSKEYBITS/8];
+        byte[] ivb = new byte[VCCrypto.CSKEYBITS/8];
+        SecureRandom sr = new SecureRandom();
+        sr.nextBytes(kb);
+        sr.nextBytes(ivb);
+        VCKeyCache.DerivedKey dk = new VCKeyCache.DerivedKey(kb, ivb);
+
+        final int entries = VCParameters.VCVOC_SIZE;
+        final int len = VCCrypto.ENGINE_BENCH_CELLS
+                      * VCGenerator.cellbytes * entries;
+        byte[] ref = null;
+        byte[] out = new byte[len];
+
+        VCKeystreamEngine best = null;
+        long bestt = Long.MAX_VALUE;
+
+        for(int i = 0; i < ALL.length; i++) {
+            final VCKeystreamEngine e = ALL[i];
+            if(e.format != format) {
+                continue;
+            }
+
+            long t = Long.MAX_VALUE;
+            try {
+                for(int r = 0; r < VCCrypto.ENGINE_BENCH_ROUNDS; r++) {
+                    long t0 = System.nanoTime();
+                    VCKeystream ks = e.open(dk, null, entries);
+                    for(int c = 0, o = 0;
+                            c < VCCrypto.ENGINE_BENCH_CELLS;
+                            c++, o += VCGenerator.cellbytes*entries) {
+                        ks.entries(c, out, o);
+                    }
+                    t = Math.min(t, System.nanoTime() - t0);
+                }
+            } catch (GeneralSecurityException gse) {
+                continue;
+            } catch (RuntimeException re) {
+                continue;
+            } catch (LinkageError le) {
+                /* Not in this platform's BouncyCastle */
+                continue;
+            }
+
+            if(ref == null) {
+                ref = out.clone();
+            } else if(!Arrays.equals(ref, out)) {
+                continue;
+            }
+
+            if(t < bestt) {
+                best = e;
+                bestt = t;
+            }
+        }
+
+        if(best == null) {
+            throw new NoSuchAlgorithmException(
+                            "No engine for keystream format " + format);
+        }
+        return best;
+    }
+}
@@ -1,15 +1,8 @@
 package org.ietfng.ns.android.vcpass;
 
-import java.security.Provider;
-import javax.crypto.spec.PBEKeySpec;
-
+/* Geometry of challenges and slides; see VCCrypto for how they are
+ * keyed. */
 public class VCParameters {
-        /* CSPRNG Class name */
-    static final Provider CSPROV =
-        new org.bouncycastle.jce.provider.BouncyCastleProvider();
-    static final String CSPRNG = "AES/CFB8/NoPadding";
-    static final String CSKEYFACT = "PBEWithSHAAnd128BitAES-CBC-BC";
-
         /* Challenge grid size */
     static final int GRID_X = 4;
     static final int GRID_Y = 4;
@@ -38,4 +31,6 @@ public class VCParameters {
         /** Pixel values */
     static final Integer black = 0xFF000000;
     static final Integer white = 0xFFFFFFFF;
+        /** Cell grid lines, drawn two pixels wide over cell edges */
+    static final int gridline = 0xC0FFFF00;
 };
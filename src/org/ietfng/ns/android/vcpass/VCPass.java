@@ -40,8 +40,9 @@ public class VCPass extends Activity
     private boolean inited = false;
     private char[] useed;
     private char[] vseed;
+    private int format;
     private String secret;
-    private Bitmap chal;
+    private byte[] chal;
 
     private static final int REQ_IMPORT = 0;
     private static final int REQ_CREATE = 1;
@@ -53,6 +54,9 @@ public class VCPass extends Activity
 
         Log.i("VCPass", "CREATE");
 
+        /* We will be generating shortly; get the crypto loaded now */
+        VCTraceLog.installIfLoggable();
+        VCCrypto.warmUp();
 
 		if(false) {
 			PackageManager pm = getPackageManager();
@@ -152,6 +156,7 @@ public class VCPass extends Activity
         intent.setAction(VCPassActivity.ACTION_CREATE_CHALLENGE);
         intent.putExtra(VCPassActivity.EXTRA_USER_SLIDE_SEED,useed);
         intent.putExtra(VCPassActivity.EXTRA_VOCABULARY_SEED,vseed);
+        intent.putExtra(VCPassActivity.EXTRA_KEYSTREAM_FORMAT,format);
         // intent.putExtra(VCPassActivity.EXTRA_QUIET_OPERATION,true);
         Log.d("VCPass", intent.toString());
         startActivityForResult(intent, REQ_CREATE);
@@ -160,7 +165,7 @@ public class VCPass extends Activity
     private void launchChallenger() {
         Intent intent = new Intent(this, VCPassActivity.class);
         intent.setAction(VCPassActivity.ACTION_PRESENT_CHALLENGE);
-        intent.putExtra(VCPassActivity.EXTRA_CHALLENGE,chal);
+        intent.putExtra(VCPassActivity.EXTRA_CHALLENGE_BITS,chal);
         intent.putExtra(VCPassActivity.EXTRA_PROMPT_TEXT,"Try this one...");
         Log.d("VCPass", intent.toString());
         startActivityForResult(intent, REQ_PRESENT);
@@ -199,10 +204,12 @@ public class VCPass extends Activity
             if (req == REQ_IMPORT) {
 		useed = data.getCharArrayExtra(VCPassActivity.EXTRA_USER_SLIDE_SEED);
 		vseed = data.getCharArrayExtra(VCPassActivity.EXTRA_VOCABULARY_SEED);
+		format = data.getIntExtra(VCPassActivity.EXTRA_KEYSTREAM_FORMAT,
+		                          VCCrypto.FORMAT_DEFAULT);
 
             	launchGenerator();
             } else if(req == REQ_CREATE) {
-                chal = (Bitmap) data.getParcelableExtra(VCPassActivity.EXTRA_CHALLENGE);
+                chal = data.getByteArrayExtra(VCPassActivity.EXTRA_CHALLENGE_BITS);
                 secret = data.getStringExtra(VCPassActivity.EXTRA_SECRET);
                 Log.i("VCPass", "CREATECHAL: " + secret);
 
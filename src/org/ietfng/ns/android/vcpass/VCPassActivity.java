@@ -9,11 +9,17 @@
 
 package org.ietfng.ns.android.vcpass;
 
+import java.io.File;
 import java.io.Serializable;
+import java.nio.ShortBuffer;
 import java.security.ProviderException;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Formatter;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -27,7 +33,6 @@ import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.Parcelable;
 import android.util.Log;
 // import android.view.Menu;
 // import android.view.MenuItem;
@@ -49,6 +54,8 @@ extends Activity
 
     private static final String SAVED_STATE_KEY_RESPONSE
         = "SEQ";
+    private static final String SAVED_STATE_KEY_REQUEST
+        = "REQ";
 
         /** Intent ACTION name for challenging the user */
     public static final String ACTION_PRESENT_CHALLENGE
@@ -87,11 +94,22 @@ extends Activity
          *
          * Type: android.graphics.Bitmap
          *
-         * Used VCPA to caller for ACTION_CREATE_CHALLENGE.
-         * Used caller to VCPA for ACTION_PRESENT_CHALLENGE.
+         * Used caller to VCPA for ACTION_PRESENT_CHALLENGE, if the
+         *      caller has no EXTRA_CHALLENGE_BITS.
          */
     public static final String EXTRA_CHALLENGE
         = "CHAL";
+        /** Intent EXTRA name for challenge bitplane.
+         *
+         * Type: [byte, as VCGenerator.generateChallengeBits
+         *      (3200 octets, where the Bitmap is some 200KB)
+         *
+         * Used VCPA to caller for ACTION_CREATE_CHALLENGE.
+         * Used caller to VCPA for ACTION_PRESENT_CHALLENGE, which
+         *      renders it.
+         */
+    public static final String EXTRA_CHALLENGE_BITS
+        = "CHALB";
         /** Intent EXTRA name for user slide seed.
          *
          * Type: [char
@@ -133,6 +151,55 @@ extends Activity
          */
     public static final String EXTRA_MINIMUM_EVENTS = "MINEVT";
 
+        /** Intent EXTRA name for the keystream format of the seeds.
+         *
+         * Type: int, one of VCCrypto.FORMAT_*
+         *
+         * Used caller to VCPA for ACTION_CREATE_CHALLENGE; defaults to
+         *      VCCrypto.FORMAT_DEFAULT.
+         * Not used for ACTION_PRESENT_CHALLENGE
+         * Used VCPA to caller for ACTION_IMPORT_SEED, as named by the
+         *      imported seeds (see VCSeedCodec.decode_format)
+         */
+    public static final String EXTRA_KEYSTREAM_FORMAT = "FMT";
+
+        /** Intent EXTRA name for precomputed tile operation.
+         *
+         * Type: void
+         *
+         * Used caller to VCPA for ACTION_CREATE_CHALLENGE: compute the
+         *      seeds' whole vocabulary once, keep it (encrypted) in the
+         *      cache directory, and assemble this and later challenges
+         *      from it.  Worthwhile when several challenges will be
+         *      made from one seed pair.  The store stays until the
+         *      pair is forgotten, with VCPassImport.ACTION_FORGET_SEED.
+         * Not used for ACTION_PRESENT_CHALLENGE
+         */
+    public static final String EXTRA_PRECOMPUTE_TILES = "TILES";
+
+        /** Intent EXTRA name for progressive presentation.
+         *
+         * Type: void
+         *
+         * Used caller to VCPA for ACTION_CREATE_CHALLENGE: rather than
+         *      returning as soon as the challenge is made, present it
+         *      to the user cell by cell as it is made, accepting
+         *      swipes on finished cells, and return EXTRA_CHALLENGE_BITS
+         *      and EXTRA_SECRET as usual along with EXTRA_RESPONSE.
+         *      Ignored with EXTRA_QUIET_OPERATION.
+         * Not used for ACTION_PRESENT_CHALLENGE
+         */
+    public static final String EXTRA_PRESENT_PROGRESSIVELY = "PROG";
+
+        /** Intent EXTRA name for the user's response.
+         *
+         * Type: java.lang.String, as EXTRA_SECRET
+         *
+         * Used VCPA to caller for ACTION_CREATE_CHALLENGE with
+         *      EXTRA_PRESENT_PROGRESSIVELY.
+         */
+    public static final String EXTRA_RESPONSE = "RESP";
+
     /* * * * * * Private constants * * * * * */
 
     private static final int cells = VCParameters.GRID_X
@@ -150,14 +217,30 @@ extends Activity
     private int[] response;         // For state saving
 	private CalcState calcstate;	// For onRetainNonConfigurationInstance
 
+	/* Progressive presentation; see showCells */
+	private Canvas progc;
+	private Paint progp;
+	private ImageView progv;
+	private int progshown;
+
     private class CalcState {
 		Handler uih;			// UI thread waiting for results
 		VCPassActivity self;	// The object of the UI
 
-		Thread calcThread;		// The worker
+		long request;			// Our VCScheduler key
+		VCScheduler.Task<CreatedChallenge> task;
+		boolean working;		// task not yet answered
 		Intent spawner;			// The intent which spawned it,
 								// also used as the callback intent.
 		String e;				// Error
+
+		/* Progressive presentation only */
+		boolean progressive;
+		ShortBuffer pixels;		// Finished cells, as rendered;
+								// lock it to touch it
+		Bitmap partial;			// ... as last copied by the UI
+		int ready;				// Cells finished
+		int[] response;			// User's answers so far
 	};
 
     /* * * * * * Private utility functions * * * * * */
@@ -181,35 +264,10 @@ extends Activity
         }
     }
 
-    /**
-     * Render a challenge grid as plain text.
-     *
-     * Each cell of the array contains an index into the
-     * vocabulary; the values [0,VCVOC_DISTINGUISHED] are
-     * rendered into the resulting string.  The remainder
-     * are ignored.
-     */
+    /** Render a challenge grid as plain text; see VCResponse */
     private static final StringBuilder
     encodeResponse(int[] chal) {
-        assert(chal.length == VCParameters.GRID_X*VCParameters.GRID_Y);
-
-        StringBuilder enc = new StringBuilder();
-
-        for(int i = 0;
-                i < VCParameters.GRID_X*VCParameters.GRID_Y;
-                i++) {
-            assert(chal[i] >= -1);
-            assert(chal[i] <= VCParameters.VCVOC_SIZE);
-            if(chal[i] >= 0
-             && chal[i] <= VCParameters.VCVOC_DISTINGUISHED) {
-                // enc.append(Integer.toString(i));
-                enc.append(Integer.toString(chal[i]));
-            } else {
-                enc.append("_");
-            }
-        }
-
-        return enc;
+        return VCResponse.encode(chal);
     }
 
     /* * * * * * Presenting a challenge to the user * * * * * */
@@ -275,11 +333,18 @@ extends Activity
         private int[] r;
         private Canvas c;
         private Paint p;
+        private CalcState cs;
 
         public VCPassTouchHandler(Canvas c, Paint p, int[] r) {
+            this(c, p, r, null);
+        }
+
+        /* If cs is given, only its finished cells take swipes */
+        VCPassTouchHandler(Canvas c, Paint p, int[] r, CalcState cs) {
             this.r = r;
             this.c = c;
 			this.p = p;
+            this.cs = cs;
         }
 
         private int expected_motion = MotionEvent.ACTION_DOWN;
@@ -307,6 +372,12 @@ extends Activity
 
 
             if (action == MotionEvent.ACTION_DOWN) {
+                if (cs != null) {
+                    synchronized(cs) {
+                        if (VCParameters.GRID_X*y + x >= cs.ready)
+                            return true;
+                    }
+                }
                 last_down_xc = xc;
                 last_down_yc = yc;
                 last_down_x = x;
@@ -378,16 +449,36 @@ extends Activity
     implements View.OnClickListener {
         private Intent i;
         private int[] r;
+        private CalcState cs;
 
         VCPassCompletionHandler(Intent i, int[] r)
+        {
+            this(i, r, null);
+        }
+
+        /* If cs is given, wait for it to finish and answer in
+         * EXTRA_RESPONSE rather than EXTRA_SECRET.
+         */
+        VCPassCompletionHandler(Intent i, int[] r, CalcState cs)
         {
             this.i = i;
             this.r = r;
+            this.cs = cs;
         }
 
         @Override
         public void onClick(View bv) {
-            i.putExtra(EXTRA_SECRET, encodeResponse(r).toString());
+            if(cs == null) {
+                i.putExtra(EXTRA_SECRET, encodeResponse(r).toString());
+            } else {
+                synchronized(cs) {
+                    if(cs.working) {
+                        return;
+                    }
+                }
+                showCells(cs);
+                i.putExtra(EXTRA_RESPONSE, encodeResponse(r).toString());
+            }
             setResult(RESULT_OK, i);
             finish();
         }
@@ -407,7 +498,16 @@ extends Activity
         }
 
 
-        Bitmap origchal = (Bitmap)spawner.getParcelableExtra(EXTRA_CHALLENGE);
+        byte[] bits = spawner.getByteArrayExtra(EXTRA_CHALLENGE_BITS);
+        Bitmap origchal;
+        if (bits != null && bits.length == cells*VCGenerator.cellbytes) {
+            VCTrace tr = VCTrace.begin("present");
+            origchal = challengeBitmap(bits);
+            VCTrace.detach(tr);
+            VCTrace.end(tr);
+        } else {
+            origchal = (Bitmap)spawner.getParcelableExtra(EXTRA_CHALLENGE);
+        }
         if (null == origchal) {
             yieldError(spawner, "No Challenge Given");
             return;
@@ -456,90 +556,100 @@ extends Activity
 
 	public static class CreatedChallenge {
 		/* Have I mentioned recently how much I hate Java?
-		 * This is as close to error+plain*bm as is trivial
+		 * This is as close to error+plain*plane as is trivial
 		 * to make here.
 		 */
     	public String plain;
-		public Bitmap bm;
+		public byte[] plane;	// As EXTRA_CHALLENGE_BITS
 		public String error;
 	}
 
+	/* Each rendering thread has its own display-sized buffer */
+	private static final ThreadLocal<ShortBuffer> pixbuf
+		= new ThreadLocal<ShortBuffer>() {
+			protected ShortBuffer initialValue() {
+				return ShortBuffer.allocate(VCParameters.DISP_X
+				                            * VCParameters.DISP_Y);
+			}
+		};
+
+	/* Choose a challenge with at least minevt distinguished cells */
+	private static int[]
+	randomPlain(int minevt) {
+		// Let this one initialize from the system's random source
+		return VCResponse.random(new SecureRandom(), minevt);
+	}
+
+	public static CreatedChallenge
+	do_createChallenge(
+		char[] useed,
+		char[] vseed,
+		int minevt,
+		VCGenerator.ProgCallback pcb
+	) {
+		return do_createChallenge(useed, vseed, minevt,
+		                          VCCrypto.FORMAT_DEFAULT, pcb);
+	}
+
 	public static CreatedChallenge
 	do_createChallenge(
 		char[] useed,
 		char[] vseed,
 		int minevt,
+		int format,
+		VCGenerator.ProgCallback pcb
+	) {
+		return do_createChallenge(useed, vseed, minevt, format, null, pcb);
+	}
+
+	public static CreatedChallenge
+	do_createChallenge(
+		char[] useed,
+		char[] vseed,
+		int minevt,
+		int format,
+		File tiledir,
+		VCGenerator.ProgCallback pcb
+	) {
+		return do_createChallenge(useed, vseed, minevt, format, tiledir,
+		                          null, pcb);
+	}
+
+	/* exec, if given, spreads the cells of a challenge not made from
+	 * tiles; see VCGenerator.generateChallengeBits */
+	static CreatedChallenge
+	do_createChallenge(
+		char[] useed,
+		char[] vseed,
+		int minevt,
+		int format,
+		File tiledir,
+		ExecutorService exec,
 		VCGenerator.ProgCallback pcb
 	) {
 		CreatedChallenge res = new CreatedChallenge();
-        	int[] plain = new int[cells];
 
         try {
-            // Let this one initialize from the system's random source
-            SecureRandom chalsr = new SecureRandom();
-            int evtc = 0;
-            do {
-                evtc = 0;
-                for(int i = 0; i < cells; i++) {
-                    plain[i] = chalsr.nextInt(VCParameters.VCVOC_SIZE+1);
-                    if(plain[i] <= VCParameters.VCVOC_DISTINGUISHED) {
-                        evtc++;
-                    }
-                }
-            } while (evtc < minevt);
-
+            int[] plain = randomPlain(minevt);
             res.plain = encodeResponse(plain).toString();
             
-            Integer[][] cella = VCGenerator.generateChallenge(
+            byte[] plane;
+            if(tiledir != null) {
+                plane = VCTileStore.challengeBits(tiledir, vseed, useed,
+                                                  format, plain, pcb);
+            } else {
+                plane = VCGenerator.generateChallengeBits(
                                     vseed, useed,
-                                    plain, pcb
+                                    plain, format, exec, pcb
                                 );
-            if(cella == null) {
+            }
+            if(plane == null) {
                 res.error = "Null return from generator";
                 return res;
             }
 
-            assert(cella.length == cells);
-            assert(cella[0].length == crpix*ccpix);
-
-            res.bm = Bitmap.createBitmap(
-                        VCParameters.DISP_X,
-                        VCParameters.DISP_Y,
-                        Bitmap.Config.RGB_565);
-
-            for(int i = 0; i < cells; i++) {
-                int[] cellai = new int[cella[i].length];
-                for(int j = 0; j < cella[i].length; j++) {
-                    cellai[j] = cella[i][j];
-                }
-
-                res.bm.setPixels(cellai, 0,
-                                crpix,
-                                (i%VCParameters.GRID_X)*crpix,
-                                (i/VCParameters.GRID_Y)*ccpix,
-                                crpix, ccpix
-                               );
-            }
-
-/* Alternative, row-by-row formulation:
-        int[][] pixels = VCGenerator.vcArrayToPixels(cella);
-        for(int i = 0; i < pixels.length; i++) {
-            res.bm.setPixels(pixels[i], 0, pixels[i].length, 0, i, pixels[i].length, 1);
-        }
-*/
-
-            Paint p = new Paint();
-            p.setColor(0xC0FFFF00);
-
-            Canvas c = new Canvas(res.bm);
-            for(int i = crpix-1; i < VCParameters.DISP_X-1; i += crpix){
-                c.drawLine(i,0,i,VCParameters.DISP_Y,p);
-                c.drawLine(i+1,0,i+1,VCParameters.DISP_Y,p);
-            }
-            for(int i = ccpix-1; i < VCParameters.DISP_Y-1; i += ccpix){
-                c.drawLine(0,i,VCParameters.DISP_X,i,p);
-                c.drawLine(0,i+1,VCParameters.DISP_X,i+1,p);
-            }
+            /* Rendered only where it is shown; see challengeBitmap */
+            res.plane = plane;
 
         } catch (ProviderException pe) {
 			res.error = pe.toString();
@@ -568,21 +678,207 @@ extends Activity
 
 	}
 
-    private static final void
+	/* Render a challenge bitplane as a display-sized bitmap */
+	private static Bitmap
+	challengeBitmap(byte[] plane) {
+		final VCTrace tr = VCTrace.current();
+		Bitmap bm = Bitmap.createBitmap(
+					VCParameters.DISP_X,
+					VCParameters.DISP_Y,
+					Bitmap.Config.RGB_565);
+		VCTrace.alloc(tr, 2*VCParameters.DISP_X*VCParameters.DISP_Y);
+
+		/* The grid is part of the rendered pixels */
+		ShortBuffer px = pixbuf.get();
+		VCGenerator.bitsToRgb565(plane, px.array());
+		final long t0 = VCTrace.now(tr);
+		px.rewind();
+		bm.copyPixelsFromBuffer(px);
+		VCTrace.phase(tr, VCTrace.BITMAP, t0);
+
+		return bm;
+	}
+
+	/* Show all of plane in cs's progressive view */
+	private static void
+	publishAll(CalcState cs, byte[] plane) {
+		synchronized(cs.pixels) {
+			VCGenerator.bitsToRgb565(plane, cs.pixels.array());
+		}
+		publishCells(cs, cells);
+	}
+
+	/* As do_createChallenge, but into cs.partial, publishing each
+	 * cell as it is finished.  pre, if given, is a finished challenge
+	 * to publish instead.
+	 */
+	private static CreatedChallenge
+	do_streamChallenge(
+		char[] useed,
+		char[] vseed,
+		int minevt,
+		int format,
+		File tiledir,
+		CreatedChallenge pre,
+		final CalcState cs
+	) {
+		if(pre != null) {
+			publishAll(cs, pre.plane);
+			return pre;
+		}
+
+		CreatedChallenge res = new CreatedChallenge();
+
+		try {
+			int[] plain = randomPlain(minevt);
+			res.plain = encodeResponse(plain).toString();
+
+			final byte[] plane;
+			boolean done;
+			if(tiledir != null) {
+				plane = VCTileStore.challengeBits(tiledir, vseed, useed,
+				                                  format, plain, null);
+				done = (plane != null);
+				if(done) {
+					publishAll(cs, plane);
+				}
+			} else {
+				plane = new byte[cells*VCGenerator.cellbytes];
+				done = VCGenerator.streamChallengeBits(
+				            vseed, useed, plain, format, plane,
+				            new VCGenerator.ProgCallback() {
+					public void progress(int x) {
+						synchronized(cs.pixels) {
+							VCGenerator.bitsToRgb565(plane, x,
+							                         cs.pixels.array());
+						}
+						publishCells(cs, x+1);
+					}
+				});
+			}
+
+			if(!done) {
+				res.error = "Null return from generator";
+			}
+			res.plane = plane;
+		} catch (ProviderException pe) {
+			res.error = pe.toString();
+		} catch (GeneralSecurityException gse) {
+			res.error = gse.toString();
+		}
+
+		return res;
+	}
+
+	private static void
+	publishCells(final CalcState cs, int ready) {
+		synchronized(cs) {
+			cs.ready = ready;
+			if(cs.uih != null) {
+				cs.uih.post(new Runnable() { public void run() {
+					cs.self.showCells(cs);
+				}});
+			}
+		}
+	}
+
+	/* On the UI thread: bring the challenge view up to date with
+	 * the cells finished so far.
+	 */
+	private final void
+	showCells(CalcState cs) {
+		int ready;
+		synchronized(cs) {
+			ready = cs.ready;
+		}
+
+		synchronized(cs.pixels) {
+			cs.pixels.rewind();
+			cs.partial.copyPixelsFromBuffer(cs.pixels);
+		}
+
+		for(; progshown < ready; progshown++) {
+			int x = (progshown%VCParameters.GRID_X)*crpix;
+			int y = (progshown/VCParameters.GRID_X)*ccpix;
+			Rect r = new Rect(x, y, x+crpix, y+ccpix);
+			progc.drawBitmap(cs.partial, r, r, null);
+			if(cs.response[progshown] != -1) {
+				update_canvas_touch(progc, progp, progshown);
+			}
+		}
+		progv.invalidate();
+	}
+
+	/* Set up the challenge view for progressive presentation */
+	private final void
+	presentProgressively(CalcState cs) {
+		setContentView(R.layout.vcpact);
+		setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+
+		Bitmap chal = cs.partial.copy(cs.partial.getConfig(), true);
+		progc = new Canvas(chal);
+		progp = new Paint();
+		progp.setARGB(127,0,255,0);
+		progshown = 0;
+
+		progv = (ImageView) findViewById(R.id.image);
+		progv.setScaleType(ImageView.ScaleType.FIT_CENTER);
+		progv.setImageBitmap(chal);
+		progv.setOnTouchListener(
+			new VCPassTouchHandler(progc, progp, cs.response, cs));
+
+		Button resetbtn = (Button) findViewById(R.id.reset);
+		resetbtn.setOnClickListener(
+			new VCPassResetHandler(progc, progv, cs.partial, cs.response));
+		Button donebtn = (Button) findViewById(R.id.done);
+		donebtn.setOnClickListener(
+			new VCPassCompletionHandler(cs.spawner, cs.response, cs));
+
+		String pt = cs.spawner.getStringExtra(EXTRA_PROMPT_TEXT);
+		if(pt != null) {
+			TextView pttv = (TextView) findViewById(R.id.prompttext);
+			pttv.setText(pt);
+		}
+
+		showCells(cs);
+	}
+
+	/* Finish tr once the UI thread gets around to it */
+	private static void
+	handOff(final CalcState cs, final VCTrace tr) {
+		if(tr == null) {
+			return;
+		}
+
+		final long posted = VCTrace.now(tr);
+		synchronized(cs) {
+			if(cs.uih != null) {
+				cs.uih.post(new Runnable() { public void run() {
+					VCTrace.phase(tr, VCTrace.HANDOFF, posted);
+					VCTrace.end(tr);
+				}});
+				return;
+			}
+		}
+		VCTrace.end(tr);
+	}
+
+    /* The work of ACTION_CREATE_CHALLENGE, on a VCScheduler worker */
+    private static final CreatedChallenge
     _intent_createChallenge(final CalcState cs,
+                        final File tiledir,
+                        final File cpdir,
                         boolean quiet) {
         char[] useed = cs.spawner.getCharArrayExtra(EXTRA_USER_SLIDE_SEED   );
         char[] vseed = cs.spawner.getCharArrayExtra(EXTRA_VOCABULARY_SEED   );
         int minevt   = cs.spawner.getIntExtra      (EXTRA_MINIMUM_EVENTS, -1);
+        int format   = cs.spawner.getIntExtra      (EXTRA_KEYSTREAM_FORMAT,
+                                            VCCrypto.FORMAT_DEFAULT);
 
         if(useed == null || vseed == null) {
-			cs.e = "Null seed";
-        	cs.calcThread = null;
-			synchronized(cs) {
-				cs.calcThread = null;
-				finishIfAnswered(cs);
-			}
-            return;
+			CreatedChallenge cc = new CreatedChallenge();
+			cc.error = "Null seed";
+            return cc;
         }
 
         final VCGenerator.ProgCallback pcb
@@ -602,28 +898,82 @@ extends Activity
             }
         };
 
-		CreatedChallenge cc = do_createChallenge(useed, vseed, minevt, pcb);
-		if(cc.error != null) {
-        	cs.e = cc.error;
+		final VCTrace tr = VCTrace.begin("challenge");
+		CreatedChallenge cc;
+		try {
+			cc = VCPrefetch.take(useed, vseed, minevt, format);
+			if(cs.progressive) {
+				cc = do_streamChallenge(useed, vseed, minevt, format,
+				                        tiledir, cc, cs);
+			} else if(cc == null) {
+				/* Checkpoints recorded at enrollment let the cells
+				 * of a legacy stream be made in parallel */
+				if(format == VCCrypto.FORMAT_CFB8) {
+					VCCheckpoints.restore(cpdir, vseed,
+					                      VCParameters.VCVOC_SIZE);
+				}
+				cc = do_createChallenge(useed, vseed, minevt, format,
+				                        tiledir, VCScheduler.cells(), pcb);
+			}
+			/* The next one will be wanted soon enough */
+			if(cc.error == null) {
+				VCPrefetch.refill(useed, vseed, minevt, format, tiledir);
+			}
+		} catch (GeneralSecurityException gse) {
+			cc = new CreatedChallenge();
+			cc.error = gse.toString();
+		}
+		VCTrace.detach(tr);
+		handOff(cs, tr);
+		return cc;
+    }
+
+    /* Back from the scheduler with the result of cs.task */
+    private static final void
+    answered(final CalcState cs) {
+		CreatedChallenge cc = cs.task.result();
+		String error = (cc == null) ? String.valueOf(cs.task.error())
+		                            : cc.error;
+
+		if(error != null) {
+        	cs.e = error;
 		} else {
-	        cs.spawner.putExtra(EXTRA_CHALLENGE, (Parcelable)cc.bm);
+			if(cs.progressive) {
+				/* In case it was our predecessor's to show */
+				publishAll(cs, cc.plane);
+			}
+	        cs.spawner.putExtra(EXTRA_CHALLENGE_BITS, cc.plane);
     	    cs.spawner.putExtra(EXTRA_SECRET, cc.plain);
-        	Log.d("VCPassAct_i_cC", cc.plain);
-	        cs.calcThread = null;
 		}
 
 		synchronized(cs) {
+			cs.working = false;
 			// This will either work or, if we're UIless, will get
 			// picked up on resume when the UI starts back up again
 			finishIfAnswered(cs);
 		}
     }
 
+    /* Our VCScheduler key.  Each request is its own, even from the
+     * same seeds, since each must get a fresh secret; random, so that a
+     * request saved before the process died cannot be confused with a
+     * new one.  Only a recreated activity, with its predecessor's saved
+     * request, may join that task or get its result.
+     */
+    private static final Random requests = new Random();
+
+    private static synchronized long
+    nextRequest() {
+		return requests.nextLong();
+    }
+
     private final void
     createChallenge(final Intent spawner, Bundle sis) {
         final boolean quiet = spawner.hasExtra(EXTRA_QUIET_OPERATION);
+        final boolean progressive = !quiet
+                    && spawner.hasExtra(EXTRA_PRESENT_PROGRESSIVELY);
 
-        if(!quiet) {
+        if(!quiet && !progressive) {
             requestWindowFeature(Window.FEATURE_PROGRESS);
             getWindow().setFeatureInt(Window.FEATURE_PROGRESS, 0);
 
@@ -636,6 +986,9 @@ extends Activity
 		if(glnci != null) {
 			Log.d(DBGN, "glnci is nonnull, checking...");
 			calcstate = (CalcState) glnci;
+			if(calcstate.progressive) {
+				presentProgressively(calcstate);
+			}
 			synchronized(calcstate) {
 				calcstate.uih = new Handler();
 				calcstate.self = this;
@@ -644,15 +997,47 @@ extends Activity
 		} else {
 			calcstate = new CalcState();
 			calcstate.spawner = spawner;
+			if(progressive) {
+				calcstate.progressive = true;
+				calcstate.pixels = ShortBuffer.allocate(
+					VCParameters.DISP_X*VCParameters.DISP_Y);
+				/* Unfinished cells show grey */
+				Arrays.fill(calcstate.pixels.array(), (short)0x8410);
+				calcstate.partial = Bitmap.createBitmap(
+					VCParameters.DISP_X, VCParameters.DISP_Y,
+					Bitmap.Config.RGB_565);
+				calcstate.response = new int[cells];
+				resetResponse(calcstate.response);
+				presentProgressively(calcstate);
+			}
 			calcstate.uih = new Handler();
 			calcstate.self = this;
-        	calcstate.calcThread = new Thread(new Runnable() {
-	            public final void run() {
-    	            _intent_createChallenge(calcstate, quiet);
-        	    }
-			});
 
-   			calcstate.calcThread.start();
+			/* If we are being recreated, our predecessor's request
+			 * may still be in flight, or done; join it.
+			 */
+			calcstate.request =
+				(sis != null && sis.containsKey(SAVED_STATE_KEY_REQUEST))
+				? sis.getLong(SAVED_STATE_KEY_REQUEST) : nextRequest();
+
+			final CalcState cs = calcstate;
+			final File tiledir = spawner.hasExtra(EXTRA_PRECOMPUTE_TILES)
+			                   ? getCacheDir() : null;
+			final File cpdir = getFilesDir();
+			cs.working = true;
+			cs.task = VCScheduler.submit(
+				"challenge " + cs.request, VCScheduler.INTERACTIVE,
+				new Callable<CreatedChallenge>() {
+					public CreatedChallenge call() {
+						return _intent_createChallenge(cs, tiledir, cpdir,
+						                               quiet);
+					}
+				});
+			cs.task.listen(new VCScheduler.Listener<CreatedChallenge>() {
+				public void done(VCScheduler.Task<CreatedChallenge> t) {
+					answered(cs);
+				}
+			});
 		}
     }
 
@@ -668,7 +1053,7 @@ extends Activity
 			r = new Runnable(){ public void run() {
 				cs.self.yieldError(cs.spawner,cs.e);
 			}};
-		} else if(cs.calcThread == null) {
+		} else if(!cs.working && !cs.progressive) {
 			r = new Runnable(){ public void run() {
 				cs.self.setResult(RESULT_OK, cs.spawner);
 				cs.self.finish();
@@ -708,10 +1093,9 @@ extends Activity
 
 		if(calcstate != null) {
 			synchronized(calcstate) {
-				if(isFinishing()) {
-        			if(calcstate.calcThread != null) { 
-						calcstate.calcThread.interrupt();
-					}
+				if(isFinishing() && calcstate.task != null) {
+					/* Stop it, or forget its result */
+					VCScheduler.release(calcstate.task);
 				}
 
 				finishIfAnswered(calcstate);
@@ -727,6 +1111,9 @@ extends Activity
          */
         if(getIntent().getAction().equals(ACTION_PRESENT_CHALLENGE)) {
             outState.putIntArray(SAVED_STATE_KEY_RESPONSE, response);
+        } else if(calcstate != null) {
+            /* ... or what we asked the scheduler for */
+            outState.putLong(SAVED_STATE_KEY_REQUEST, calcstate.request);
         }
     }
 
@@ -2,14 +2,18 @@ package org.ietfng.ns.android.vcpass;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.os.Parcelable;
+import android.text.Editable;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
 public final class
 VCPassImport
 extends Activity
@@ -26,6 +30,12 @@ extends Activity
         = "org.ietfng.ns.android.vcpass.SEED_IMPORT";
     public static final String ACTION_IMPORT_AND_CREATE
         = "org.ietfng.ns.android.vcpass.IMPORT_AND_CREATE";
+    /** Drop whatever was kept for the seeds in EXTRA_USER_SLIDE_SEED,
+     * EXTRA_VOCABULARY_SEED and EXTRA_KEYSTREAM_FORMAT, as when their
+     * pass is cleared or replaced.  No UI; always RESULT_OK.
+     */
+    public static final String ACTION_FORGET_SEED
+        = "org.ietfng.ns.android.vcpass.SEED_FORGET";
 
     private static final int REQ_IMPORT = 0;
     private static final int REQ_CREATE_FOR_PRESENT = 1;
@@ -38,11 +48,13 @@ extends Activity
 
     char[] useed;
     char[] vseed;
-    Bitmap cfpc;
+    int format = VCCrypto.FORMAT_DEFAULT;   /* As EXTRA_KEYSTREAM_FORMAT */
+    byte[] cfpc;                /* As EXTRA_CHALLENGE_BITS */
     String cfps;
 
     final String SAVED_STATE_USEED = "USEED";
     final String SAVED_STATE_VSEED = "VSEED";
+    final String SAVED_STATE_FORMAT = "FMT";
     final String SAVED_STATE_CFPC  = "CFPC";
     final String SAVED_STATE_CFPS  = "CFPS";
 
@@ -55,6 +67,13 @@ extends Activity
         intent.setAction(VCPassActivity.ACTION_CREATE_CHALLENGE);
         intent.putExtra(VCPassActivity.EXTRA_USER_SLIDE_SEED,useed);
         intent.putExtra(VCPassActivity.EXTRA_VOCABULARY_SEED,vseed);
+        intent.putExtra(VCPassActivity.EXTRA_KEYSTREAM_FORMAT,format);
+        /* We may come back here many times for one seed pair, but
+         * the store outlives us; only keep one if our caller asked.
+         */
+        if(getIntent().hasExtra(VCPassActivity.EXTRA_PRECOMPUTE_TILES)) {
+            intent.putExtra(VCPassActivity.EXTRA_PRECOMPUTE_TILES,true);
+        }
         if(min > 0) {
             intent.putExtra(VCPassActivity.EXTRA_MINIMUM_EVENTS,min);
         }
@@ -65,7 +84,7 @@ extends Activity
         Log.d(DBGN, "Launching challenger...");
         Intent intent = new Intent(this, VCPassActivity.class);
         intent.setAction(VCPassActivity.ACTION_PRESENT_CHALLENGE);
-        intent.putExtra(VCPassActivity.EXTRA_CHALLENGE,cfpc);
+        intent.putExtra(VCPassActivity.EXTRA_CHALLENGE_BITS,cfpc);
         intent.putExtra(VCPassActivity.EXTRA_PROMPT_TEXT,
                     getString(R.string.import_test));
         Log.d(DBGN, intent.toString());
@@ -84,15 +103,65 @@ extends Activity
 
         @Override
         public void onClick(View bv) {
-            self.haveImportedSeed(et.getText().toString());
+            /* Decode from the field itself, and empty it once used,
+             * rather than leave the seeds in yet another String */
+            Editable seed = et.getText();
+            if(self.haveImportedSeed(seed)) {
+                seed.clear();
+            }
         }
     }
 
         // XXX
     private String zxingscan = "com.google.zxing.client.android.SCAN";
+    /* Checkpoint a legacy vocabulary stream in the background, so
+     * that its challenges can be made a cell per core; see
+     * VCCheckpoints.
+     */
+    private final void
+    recordSeeds() {
+        if(format != VCCrypto.FORMAT_CFB8) {
+            return;
+        }
+        final File dir = getFilesDir();
+        final char[] v = vseed.clone();
+        VCScheduler.submit(new Object(), VCScheduler.PREFETCH,
+            new Callable<Void>() {
+                public Void call() throws GeneralSecurityException {
+                    try {
+                        VCCheckpoints.record(dir, v,
+                                             VCParameters.VCVOC_SIZE);
+                    } finally {
+                        Arrays.fill(v, '\0');
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /* Delete any tile store and checkpoints kept for the seeds, which
+     * are about to be replaced or discarded.
+     */
+    private final void
+    forgetSeeds() {
+        if(useed == null || vseed == null) {
+            return;
+        }
+        try {
+            VCTileStore.forget(getCacheDir(), vseed, useed, format);
+            VCCheckpoints.forget(getFilesDir(), vseed,
+                                 VCParameters.VCVOC_SIZE);
+        } catch (GeneralSecurityException gse) {
+            Log.e(DBGN, "Cannot forget seeds", gse);
+        }
+        useed = null;
+        vseed = null;
+    }
+
     private final void
     importSeed() {
         Log.d(DBGN, "Import seed...");
+        forgetSeeds();
 
         Intent intent = new Intent(zxingscan);
         boolean isAvail = Utils.isIntentAvailable(this, intent);
@@ -108,12 +177,14 @@ extends Activity
     }
 
     private final boolean
-    haveImportedSeed(String seed) {
+    haveImportedSeed(CharSequence seed) {
         Log.d(DBGN, "Have imported seed...");
 
         char[][] ds;
+        int fmt;
         try {
-        ds = Utils.decode_seeds(seed);
+        ds = VCSeedCodec.decode_seeds(seed);
+        fmt = VCSeedCodec.decode_format(seed);
         if(ds[0] == null
             || ds[1] == null
             || ds[0].length == 0
@@ -125,6 +196,8 @@ extends Activity
 
         this.useed = ds[0];
         this.vseed = ds[1];
+        this.format = fmt;
+        recordSeeds();
 
         if(getIntent().hasExtra(VCPassActivity.EXTRA_QUIET_OPERATION)) {
             finishImportedSeed();
@@ -146,15 +219,16 @@ extends Activity
     }
 
     private final void
-    finalResult(Parcelable chal, String secret) {
+    finalResult(byte[] chal, String secret) {
         Log.d(DBGN, "Final result...");
 
         Intent result = getIntent();
 
         result.putExtra(VCPassActivity.EXTRA_USER_SLIDE_SEED, useed  );
         result.putExtra(VCPassActivity.EXTRA_VOCABULARY_SEED, vseed  );
+        result.putExtra(VCPassActivity.EXTRA_KEYSTREAM_FORMAT, format);
         if(chal != null)
-            result.putExtra(VCPassActivity.EXTRA_CHALLENGE  , chal   );
+            result.putExtra(VCPassActivity.EXTRA_CHALLENGE_BITS, chal );
         if(secret != null)
             result.putExtra(VCPassActivity.EXTRA_SECRET     , secret );
         setResult(RESULT_OK, result);
@@ -167,6 +241,7 @@ extends Activity
 
         if(res == RESULT_CANCELED && req != REQ_PRESENT) {
 			Log.d(DBGN, "CANCEL?");
+            forgetSeeds();
         	setResult(RESULT_CANCELED, getIntent());
 			finish();
 			return;
@@ -174,6 +249,7 @@ extends Activity
         if(data == null) {
             // being canceled; report failure upstream
 			Log.d(DBGN, "Null data?");
+            forgetSeeds();
             setResult(RESULT_CANCELED, null);
             finish();
             return;
@@ -189,8 +265,8 @@ extends Activity
                 break;
             case REQ_CREATE_FOR_PRESENT:
                 Log.d(DBGN, "Result CFP ...");
-                cfpc = (Bitmap) data.getParcelableExtra(
-                        VCPassActivity.EXTRA_CHALLENGE);
+                cfpc = data.getByteArrayExtra(
+                        VCPassActivity.EXTRA_CHALLENGE_BITS);
                 cfps = data.getStringExtra(VCPassActivity.EXTRA_SECRET);
 
                 launchChallenger();
@@ -213,8 +289,8 @@ extends Activity
                 break;
             case REQ_CREATE:
                 Log.d(DBGN, "Result C ...");
-                finalResult(data.getParcelableExtra(
-                                VCPassActivity.EXTRA_CHALLENGE),
+                finalResult(data.getByteArrayExtra(
+                                VCPassActivity.EXTRA_CHALLENGE_BITS),
                             data.getStringExtra(
                                 VCPassActivity.EXTRA_SECRET));
                 break;
@@ -238,10 +314,23 @@ extends Activity
         if(sis != null) {
             useed =          sis.getCharArray (SAVED_STATE_USEED);
             vseed =          sis.getCharArray (SAVED_STATE_VSEED);
-            cfpc  = (Bitmap) sis.getParcelable(SAVED_STATE_CFPC );
+            format =         sis.getInt       (SAVED_STATE_FORMAT,
+                                               VCCrypto.FORMAT_DEFAULT);
+            cfpc  =          sis.getByteArray (SAVED_STATE_CFPC );
             cfps  =          sis.getString    (SAVED_STATE_CFPS );
         } else { 
-        	if (act.equals(ACTION_IMPORT_SEED)
+        	if (act.equals(ACTION_FORGET_SEED)) {
+        	    Intent i = getIntent();
+        	    useed = i.getCharArrayExtra(
+        	                VCPassActivity.EXTRA_USER_SLIDE_SEED);
+        	    vseed = i.getCharArrayExtra(
+        	                VCPassActivity.EXTRA_VOCABULARY_SEED);
+        	    format = i.getIntExtra(VCPassActivity.EXTRA_KEYSTREAM_FORMAT,
+        	                           VCCrypto.FORMAT_DEFAULT);
+        	    forgetSeeds();
+        	    setResult(RESULT_OK, null);
+        	    finish();
+        	} else if (act.equals(ACTION_IMPORT_SEED)
     	            || act.equals(ACTION_IMPORT_AND_CREATE)) {
 	            importSeed();
         	} else {
@@ -258,8 +347,9 @@ extends Activity
 
         outState.putCharArray (SAVED_STATE_USEED, useed);
         outState.putCharArray (SAVED_STATE_VSEED, vseed);
+        outState.putInt       (SAVED_STATE_FORMAT, format);
 
-        outState.putParcelable(SAVED_STATE_CFPC , cfpc );
+        outState.putByteArray (SAVED_STATE_CFPC , cfpc );
         outState.putString    (SAVED_STATE_CFPS , cfps );
     }
 }
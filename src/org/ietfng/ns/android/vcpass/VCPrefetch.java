@@ -0,0 +1,230 @@
+/** Background pool of ready-made challenges.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/*
+ * Every wrong answer, and every round of an import test, asks for
+ * another challenge from the same seeds, and the user watches the
+ * progress bar while it is made.  Instead, once a challenge has been
+ * made for a set of seeds we keep making up to DEPTH more as
+ * VCScheduler.PREFETCH work, behind anything the user is waiting for,
+ * so the next request can be answered straight from the pool.  One
+ * that comes while they are still being made claims the oldest and
+ * waits for it, rather than making yet another alongside it.
+ *
+ * Each challenge goes to one request only: take() removes a ready one
+ * from its pool, or claims one being made, under the pools' lock, and
+ * a claimed one never reaches the pool.  Requests from the same seeds
+ * share a pool, never a challenge.
+ *
+ * Pools are kept for the PAIRS most recent requests; each holds a
+ * copy of the seeds it generates from, which is overwritten (along
+ * with its unused challenges) when the pool is dropped.
+ */
+final class VCPrefetch {
+
+        /* Challenges kept ready per request; each is a bitplane */
+    private static final int DEPTH = 2;
+        /* Requests (seed pairs, really) kept */
+    private static final int PAIRS = 2;
+
+    private static final class Pool {
+        final char[] useed;
+        final char[] vseed;
+        final int minevt;
+        final int format;
+        final File tiledir;
+
+        final LinkedList<VCPassActivity.CreatedChallenge> ready
+            = new LinkedList<VCPassActivity.CreatedChallenge>();
+            /* Queued or running, oldest first, and not yet claimed */
+        final LinkedList<Fill> inflight = new LinkedList<Fill>();
+        boolean dead = false;
+
+        Pool(char[] u, char[] v, int minevt, int format, File tiledir) {
+            this.useed = u.clone();
+            this.vseed = v.clone();
+            this.minevt = minevt;
+            this.format = format;
+            this.tiledir = tiledir;
+        }
+
+        /* Called with pools locked */
+        void kill() {
+            dead = true;
+            Arrays.fill(useed, '\0');
+            Arrays.fill(vseed, '\0');
+            while(!ready.isEmpty()) {
+                Arrays.fill(ready.removeFirst().plane, (byte)0);
+            }
+        }
+    }
+
+    /* One challenge being made for p; claimed if take() has joined it
+     * and wants the result for itself. */
+    private static final class Fill
+    implements Callable<VCPassActivity.CreatedChallenge> {
+        final Pool p;
+        VCScheduler.Task<VCPassActivity.CreatedChallenge> task;
+        boolean claimed = false;
+
+        Fill(Pool p) {
+            this.p = p;
+        }
+
+        public VCPassActivity.CreatedChallenge call() {
+            char[] u, v;
+            synchronized(pools) {
+                if(p.dead) {
+                    p.inflight.remove(this);
+                    return null;
+                }
+                u = p.useed.clone();
+                v = p.vseed.clone();
+            }
+
+            VCTrace tr = VCTrace.begin("prefetch");
+            VCPassActivity.CreatedChallenge cc
+                = VCPassActivity.do_createChallenge(u, v, p.minevt,
+                                                    p.format,
+                                                    p.tiledir, null);
+            VCTrace.detach(tr);
+            VCTrace.end(tr);
+            Arrays.fill(u, '\0');
+            Arrays.fill(v, '\0');
+
+            synchronized(pools) {
+                p.inflight.remove(this);
+                if(claimed) {
+                    return cc;
+                }
+                /* On error, leave it to the foreground to report */
+                if(cc.error == null && !p.dead) {
+                    p.ready.addLast(cc);
+                    return null;
+                }
+            }
+            if(cc.plane != null) {
+                Arrays.fill(cc.plane, (byte)0);
+            }
+            return null;
+        }
+    }
+
+    private static final LinkedHashMap<ByteBuffer,Pool> pools
+        = new LinkedHashMap<ByteBuffer,Pool>(PAIRS+1, 0.75f, true) {
+            protected boolean
+            removeEldestEntry(Map.Entry<ByteBuffer,Pool> e) {
+                if(size() > PAIRS) {
+                    e.getValue().kill();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    private VCPrefetch() { }
+
+    /** A prefetched challenge for these parameters, waiting for one
+     * being made if need be, or null if there is none.  It is taken out
+     * of the pool; no other call will get it.  Call only from a
+     * VCScheduler task.
+     */
+    static final VCPassActivity.CreatedChallenge
+    take(char[] useed, char[] vseed, int minevt, int format)
+    throws GeneralSecurityException
+    {
+        final ByteBuffer id = id(useed, vseed, minevt, format);
+
+        Fill f;
+        synchronized(pools) {
+            Pool p = pools.get(id);
+            if(p == null) {
+                return null;
+            }
+            if(!p.ready.isEmpty()) {
+                return p.ready.removeFirst();
+            }
+            f = p.inflight.poll();
+            if(f == null) {
+                return null;
+            }
+            f.claimed = true;
+        }
+
+        try {
+            if(!VCScheduler.join(f.task)) {
+                return null;
+            }
+        } catch (InterruptedException ie) {
+            /* Our own task was released; let the caller see that */
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        VCPassActivity.CreatedChallenge cc = f.task.result();
+        return (cc == null || cc.error != null) ? null : cc;
+    }
+
+    /** Top up the pool for these parameters in the background. */
+    static final void
+    refill(char[] useed, char[] vseed, int minevt, int format, File tiledir)
+    throws GeneralSecurityException
+    {
+        final ByteBuffer id = id(useed, vseed, minevt, format);
+
+        synchronized(pools) {
+            Pool p = pools.get(id);
+            if(p == null) {
+                p = new Pool(useed, vseed, minevt, format, tiledir);
+                pools.put(id, p);
+            }
+
+            while(p.ready.size() + p.inflight.size() < DEPTH) {
+                /* Each is its own task, named by its Fill; take()
+                 * joins them directly rather than by key. */
+                Fill f = new Fill(p);
+                f.task = VCScheduler.submit(f, VCScheduler.PREFETCH, f);
+                p.inflight.addLast(f);
+            }
+        }
+    }
+
+    /** Drop (and wipe) every pool. */
+    static final void
+    clear() {
+        VCScheduler.cancelAll(VCScheduler.PREFETCH);
+        synchronized(pools) {
+            Iterator<Pool> i = pools.values().iterator();
+            while(i.hasNext()) {
+                i.next().kill();
+                i.remove();
+            }
+        }
+    }
+
+    private static final ByteBuffer
+    id(char[] useed, char[] vseed, int minevt, int format)
+    throws GeneralSecurityException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(VCKeyCache.fingerprint(useed));
+        md.update(VCKeyCache.fingerprint(vseed));
+        md.update(ByteBuffer.allocate(8).putInt(minevt).putInt(format)
+                            .array());
+        return ByteBuffer.wrap(md.digest());
+    }
+}
@@ -0,0 +1,70 @@
+/** Challenge answers and their text form.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.util.Random;
+
+/*
+ * A challenge is chosen as one vocabulary index per cell; its answer,
+ * and the user's response, are written one character per cell: the
+ * index of a distinguished entry, or '_' for any other.  This lives
+ * apart from VCPassActivity so that host-side code can choose and
+ * check challenges the same way.
+ */
+final class VCResponse {
+
+    private VCResponse() { }
+
+    /**
+     * Render a challenge grid as plain text.
+     *
+     * Each cell of the array contains an index into the
+     * vocabulary; the values [0,VCVOC_DISTINGUISHED] are
+     * rendered into the resulting string.  The remainder
+     * (including -1, for no answer) are written as '_'.
+     */
+    static final StringBuilder
+    encode(int[] chal) {
+        assert(chal.length == VCParameters.GRID_X*VCParameters.GRID_Y);
+
+        StringBuilder enc = new StringBuilder();
+
+        for(int i = 0;
+                i < VCParameters.GRID_X*VCParameters.GRID_Y;
+                i++) {
+            assert(chal[i] >= -1);
+            assert(chal[i] < VCParameters.VCVOC_SIZE);
+            if(chal[i] >= 0
+             && chal[i] <= VCParameters.VCVOC_DISTINGUISHED) {
+                enc.append(Integer.toString(chal[i]));
+            } else {
+                enc.append("_");
+            }
+        }
+
+        return enc;
+    }
+
+    /** Choose a challenge with at least minevt distinguished cells */
+    static final int[]
+    random(Random r, int minevt) {
+        final int cells = VCParameters.GRID_X*VCParameters.GRID_Y;
+        int[] plain = new int[cells];
+
+        int evtc = 0;
+        do {
+            evtc = 0;
+            for(int i = 0; i < cells; i++) {
+                plain[i] = r.nextInt(VCParameters.VCVOC_SIZE);
+                if(plain[i] <= VCParameters.VCVOC_DISTINGUISHED) {
+                    evtc++;
+                }
+            }
+        } while (evtc < minevt);
+
+        return plain;
+    }
+}
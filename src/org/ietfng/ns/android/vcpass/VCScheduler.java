@@ -0,0 +1,369 @@
+/** App-wide scheduler for generation work.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+
+/*
+ * Every challenge used to get a Thread of its own, so that a rotation
+ * or a quick back-and-forth could leave several generators fighting
+ * over the CPU, and VCPrefetch kept yet another.  Instead all of it
+ * goes through here: THREADS workers take tasks from one queue,
+ * interactive ones ahead of prefetching, oldest first.  Tasks are not
+ * preempted, so one more worker runs only interactive tasks; however
+ * much prefetching is under way, the user never waits behind it.
+ *
+ * Tasks are named by a key.  submit() with the key of a task that is
+ * queued or running joins it (raising its priority if need be) rather
+ * than starting another, and a finished interactive task is kept,
+ * under the same key, until released, up to DONE_KEPT of them; so an
+ * activity that is recreated can ask again and get whatever its
+ * predecessor asked for, finished or not.
+ *
+ * join() waits for a task from another task: one nobody has started
+ * is run right there, rather than left for a worker that may be busy
+ * with the very task that is waiting.
+ *
+ * release() says the result is no longer wanted by anyone: a task
+ * that has not finished is dropped from the queue or, if running,
+ * interrupted (the generators notice at the next cell), and a
+ * finished one is forgotten.
+ */
+final class VCScheduler {
+
+        /* Priorities, most urgent first */
+    static final int INTERACTIVE = 0;
+    static final int PREFETCH    = 1;
+
+        /* Worker threads; generation is CPU-bound, so no more than
+         * the machine has, and leave one for the UI where we can.
+         * The interactive-only worker is extra. */
+    private static final int THREADS = Math.max(1,
+            Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+        /* Threads for the cells of interactive work; see cells() */
+    private static final ExecutorService CELLS = THREADS < 2 ? null
+        : Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+              private int n = 0;
+              public synchronized Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "VCScheduler-cell-" + n++);
+                  t.setDaemon(true);
+                  return t;
+              }
+          });
+        /* Finished, unclaimed results kept */
+    private static final int DONE_KEPT = 4;
+
+        /** Told when a task finishes, on the worker that ran it */
+    interface Listener<T> {
+        void done(Task<T> t);
+    }
+
+    static final class Task<T> implements Comparable<Task<?>> {
+        final Object key;
+        private final Callable<T> work;
+        private final long seq;
+        private int prio;
+
+        private Thread runner = null;
+        private int tid;
+        private boolean cancelled = false;
+        private boolean done = false;
+        private T result = null;
+        private Exception error = null;
+        private final List<Listener<T>> listeners
+            = new ArrayList<Listener<T>>();
+
+        private Task(Object key, int prio, long seq, Callable<T> work) {
+            this.key = key;
+            this.prio = prio;
+            this.seq = seq;
+            this.work = work;
+        }
+
+        public int compareTo(Task<?> o) {
+            if(prio != o.prio) {
+                return prio < o.prio ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+
+        /** The result; only meaningful once done. */
+        synchronized final T result() { return result; }
+        /** What the work threw, if anything. */
+        synchronized final Exception error() { return error; }
+        synchronized final boolean isDone() { return done; }
+
+        /** Call l when done, or now if already done. */
+        final void
+        listen(final Listener<T> l) {
+            synchronized(this) {
+                if(!done) {
+                    listeners.add(l);
+                    return;
+                }
+            }
+            l.done(this);
+        }
+
+        /** Stop calling l. */
+        synchronized final void
+        unlisten(final Listener<T> l) {
+            listeners.remove(l);
+        }
+
+        /* inline: on behalf of some other task, by join() */
+        private void
+        run(boolean inline) {
+            synchronized(this) {
+                if(cancelled) {
+                    return;
+                }
+                runner = Thread.currentThread();
+                tid = Process.myTid();
+            }
+
+            if(!inline) {
+                Process.setThreadPriority(prio == INTERACTIVE
+                                      ? Process.THREAD_PRIORITY_DEFAULT
+                                      : Process.THREAD_PRIORITY_BACKGROUND);
+            }
+
+            T r = null;
+            Exception e = null;
+            try {
+                r = work.call();
+            } catch (Exception x) {
+                e = x;
+            }
+
+            List<Listener<T>> ls;
+            synchronized(this) {
+                runner = null;
+                /* Don't let a cancellation leak into the next task;
+                 * inline, though, it may be the joiner's. */
+                if(!inline) {
+                    Thread.interrupted();
+                }
+                result = r;
+                error = e;
+                done = true;
+                ls = new ArrayList<Listener<T>>(listeners);
+                listeners.clear();
+                notifyAll();
+            }
+            finished(this);
+            for(Listener<T> l : ls) {
+                l.done(this);
+            }
+        }
+    }
+
+    /* Tasks not yet started; guarded by itself, and notified on add */
+    private static final PriorityQueue<Task<?>> queue
+        = new PriorityQueue<Task<?>>();
+    /* Tasks queued or running, by key; guarded by itself */
+    private static final Map<Object,Task<?>> live
+        = new HashMap<Object,Task<?>>();
+    /* Tasks done but not yet claimed, by key; guarded by live */
+    private static final LinkedHashMap<Object,Task<?>> kept
+        = new LinkedHashMap<Object,Task<?>>(DONE_KEPT+1, 0.75f, true) {
+            protected boolean
+            removeEldestEntry(Map.Entry<Object,Task<?>> e) {
+                return size() > DONE_KEPT;
+            }
+        };
+    private static long seq = 0;
+
+    static {
+        for(int i = 0; i <= THREADS; i++) {
+            final boolean reserved = (i == THREADS);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while(true) {
+                        try {
+                            next(reserved).run(false);
+                        } catch (InterruptedException ie) {
+                            /* A late cancellation; carry on */
+                        }
+                    }
+                }
+            }, reserved ? "VCScheduler-interactive" : "VCScheduler-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /* Wait for a task to run: the most urgent, but only an interactive
+     * one for the reserved worker. */
+    private static final Task<?>
+    next(final boolean reserved) throws InterruptedException {
+        synchronized(queue) {
+            while(true) {
+                Task<?> t = queue.peek();
+                if(t != null && (!reserved || t.prio == INTERACTIVE)) {
+                    return queue.poll();
+                }
+                queue.wait();
+            }
+        }
+    }
+
+    private static final void
+    enqueue(final Task<?> t) {
+        synchronized(queue) {
+            queue.add(t);
+            queue.notifyAll();
+        }
+    }
+
+    private static final boolean
+    dequeue(final Task<?> t) {
+        synchronized(queue) {
+            return queue.remove(t);
+        }
+    }
+
+    private VCScheduler() { }
+
+    /** Run work under key at prio, or join the task already there. */
+    @SuppressWarnings("unchecked")
+    static final <T> Task<T>
+    submit(final Object key, final int prio, final Callable<T> work) {
+        synchronized(live) {
+            Task<T> t = (Task<T>) kept.get(key);
+            if(t != null) {
+                return t;
+            }
+
+            t = (Task<T>) live.get(key);
+            if(t != null) {
+                synchronized(t) {
+                    if(prio < t.prio && dequeue(t)) {
+                        t.prio = prio;
+                        enqueue(t);
+                    }
+                }
+                return t;
+            }
+
+            t = new Task<T>(key, prio, seq++, work);
+            live.put(key, t);
+            enqueue(t);
+            return t;
+        }
+    }
+
+    /** Where an interactive task may spread the cells of a challenge,
+     * as the exec of VCGenerator's generators; null if there is no
+     * more than one worker's worth of CPU to spread them over.  The
+     * task waits for its cells, so they take no more CPU than it
+     * would have.
+     */
+    static final ExecutorService
+    cells() {
+        return CELLS;
+    }
+
+    /** Wait for t to finish, running it on this thread if no worker
+     * has started it, or hurrying its worker along if one has.  Returns
+     * false if t was released instead.
+     */
+    static final boolean
+    join(final Task<?> t) throws InterruptedException {
+        boolean mine;
+        synchronized(live) {
+            synchronized(t) {
+                if(t.done) {
+                    return true;
+                }
+                mine = !t.cancelled && dequeue(t);
+                if(!mine && t.runner != null) {
+                    Process.setThreadPriority(t.tid,
+                                      Process.THREAD_PRIORITY_DEFAULT);
+                }
+            }
+        }
+
+        if(mine) {
+            t.run(true);
+            return true;
+        }
+        synchronized(t) {
+            while(!t.done && !t.cancelled) {
+                t.wait();
+            }
+            return t.done;
+        }
+    }
+
+    /** Cancel t, or forget it if finished. */
+    static final void
+    release(final Task<?> t) {
+        synchronized(live) {
+            synchronized(t) {
+                if(t.done) {
+                    kept.remove(t.key);
+                    return;
+                }
+                t.cancelled = true;
+                t.listeners.clear();
+                t.notifyAll();
+                if(t.runner != null) {
+                    t.runner.interrupt();
+                }
+            }
+            dequeue(t);
+            live.remove(t.key);
+        }
+    }
+
+    /** Release every unfinished task at prio. */
+    static final void
+    cancelAll(final int prio) {
+        List<Task<?>> ts = new ArrayList<Task<?>>();
+        synchronized(live) {
+            Iterator<Task<?>> i = live.values().iterator();
+            while(i.hasNext()) {
+                Task<?> t = i.next();
+                synchronized(t) {
+                    if(t.prio == prio) {
+                        ts.add(t);
+                    }
+                }
+            }
+            for(Task<?> t : ts) {
+                release(t);
+            }
+        }
+    }
+
+    private static final void
+    finished(final Task<?> t) {
+        synchronized(live) {
+            if(live.get(t.key) == t) {
+                live.remove(t.key);
+            }
+            synchronized(t) {
+                if(t.cancelled || t.prio != INTERACTIVE) {
+                    return;
+                }
+            }
+            kept.put(t.key, t);
+        }
+    }
+}
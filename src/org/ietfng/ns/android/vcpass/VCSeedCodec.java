@@ -0,0 +1,320 @@
+package org.ietfng.ns.android.vcpass;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/** Encoding of the (user slide, vocabulary) seed pair for transport.
+ *
+ * This lives apart from Utils so that host-side code can use it
+ * without the Android classes.
+ *
+ * Both directions work over char[] and CharSequence (so CharBuffer
+ * and Android's Editable) with offsets, and make no Strings along
+ * the way; scratch space is wiped before returning.  The String
+ * forms are kept for callers that have or need nothing better.
+ */
+public final class VCSeedCodec {
+        private VCSeedCodec() { }
+
+        /*
+         * DJB Netstrings-esque encoding functions for storing
+         * our two seeds in one string.
+         */
+        public static String encode_seeds(char[] useed, char[] vseed) {
+                return wipingString(encode_seeds_chars(useed, vseed));
+        }
+
+        /** As encode_seeds, into a new array for the caller to wipe */
+        public static char[] encode_seeds_chars(char[] useed, char[] vseed) {
+                char[] c = new char[digits(useed.length) + 1 + useed.length
+                                  + digits(vseed.length) + 1 + vseed.length];
+                putNetstring(c, putNetstring(c, 0, useed), vseed);
+                return c;
+        }
+
+        private static int digits(int v) {
+                int n = 1;
+                for(; v >= 10; v /= 10) {
+                        n++;
+                }
+                return n;
+        }
+
+        private static int putNetstring(char[] c, int o, char[] s) {
+                int n = digits(s.length);
+                for(int i = n - 1, v = s.length; i >= 0; i--, v /= 10) {
+                        c[o+i] = (char)('0' + v%10);
+                }
+                o += n;
+                c[o++] = ':';
+                System.arraycopy(s, 0, c, o, s.length);
+                return o + s.length;
+        }
+
+        /** Decode either form of seed pair; see encode_seeds_binary */
+        public static char[][] decode_seeds(String s) {
+                return decode_seeds((CharSequence)s);
+        }
+
+        /** Decode the seed pair in s[off .. off+len) */
+        public static char[][] decode_seeds(char[] s, int off, int len) {
+                return decode_seeds(CharBuffer.wrap(s, off, len));
+        }
+
+        public static char[][] decode_seeds(CharSequence s) {
+                if(isBinary(s)) {
+                        return decode_binary(s);
+                }
+
+                int ulenend = indexOf(s, ':', 0);
+                int ulen = parseLength(s, 0, ulenend);
+                int vlenend = indexOf(s, ':', ulenend+ulen+1);
+                /* Checked, but the rest of s is the vocabulary seed */
+                parseLength(s, ulenend+ulen+1, vlenend);
+                char[][] ret = new char[2][];
+                ret[0] = copy(s, ulenend+1, ulenend+ulen+1);
+                ret[1] = copy(s, vlenend+1, s.length());
+                return ret;
+        }
+
+        private static int indexOf(CharSequence s, char c, int from) {
+                for(int i = from; i < s.length(); i++) {
+                        if(s.charAt(i) == c) {
+                                return i;
+                        }
+                }
+                return -1;
+        }
+
+        /* The decimal length in s[from .. to), if it fits in s */
+        private static int parseLength(CharSequence s, int from, int to) {
+                if(from < 0 || to <= from) {
+                        throw new IllegalArgumentException("No seed length");
+                }
+                int v = 0;
+                for(int i = from; i < to; i++) {
+                        char c = s.charAt(i);
+                        if(c < '0' || c > '9' || v > s.length()) {
+                                throw new IllegalArgumentException(
+                                        "Bad seed length");
+                        }
+                        v = v*10 + (c - '0');
+                }
+                return v;
+        }
+
+        private static char[] copy(CharSequence s, int from, int to) {
+                if(to > s.length()) {
+                        throw new IllegalArgumentException("Short seed");
+                }
+                char[] c = new char[to - from];
+                for(int i = from; i < to; i++) {
+                        c[i - from] = s.charAt(i);
+                }
+                return c;
+        }
+
+        private static String wipingString(char[] c) {
+                try {
+                        return new String(c);
+                } finally {
+                        Arrays.fill(c, '\0');
+                }
+        }
+
+        /*
+         * The netstring form of two 128-character seeds is some 270
+         * octets, which makes for a dense QR code that phones are slow
+         * to scan.  The binary form is
+         *
+         *      BINARY_PREFIX base32(version format ulen useed
+         *                           vlen vseed crc32)
+         *
+         * with each seed character in one octet (so SEED_OCTETS of
+         * them carry as much as the whole of a text seed) and the
+         * CRC32, big-endian, over everything before it.  Base32 with
+         * no padding keeps to the characters of QR's alphanumeric
+         * mode, at 5.5 bits each; a pair of SEED_OCTETS seeds comes
+         * to 118 characters.  The prefix cannot begin a netstring.
+         */
+        static final String BINARY_PREFIX = "VC";
+        static final int BINARY_VERSION = 1;
+        /** Octets per seed generated for the binary form */
+        static final int SEED_OCTETS = 32;
+
+        private static final String B32
+                = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+        /** Seed characters for random octets, one each */
+        static char[] seedChars(byte[] b) {
+                char[] c = new char[b.length];
+                for(int i = 0; i < b.length; i++) {
+                        c[i] = (char)(b[i] & 0xFF);
+                }
+                return c;
+        }
+
+        /** Encode a seed pair, and its keystream format, compactly.
+         *
+         * Every seed character must fit in an octet, and each seed in
+         * 255 of them, as those from seedChars do.
+         */
+        public static String encode_seeds_binary(char[] useed,
+                                                 char[] vseed,
+                                                 int format) {
+                return wipingString(
+                        encode_seeds_binary_chars(useed, vseed, format));
+        }
+
+        /** As encode_seeds_binary, into a new array for the caller
+         * to wipe.
+         */
+        public static char[] encode_seeds_binary_chars(char[] useed,
+                                                       char[] vseed,
+                                                       int format) {
+                if(useed.length > 0xFF || vseed.length > 0xFF) {
+                        throw new IllegalArgumentException("Seed too long");
+                }
+                byte[] b = new byte[3 + useed.length + 1 + vseed.length + 4];
+                try {
+                        int o = 0;
+                        b[o++] = (byte)BINARY_VERSION;
+                        b[o++] = (byte)format;
+                        o = putSeed(b, o, useed);
+                        o = putSeed(b, o, vseed);
+
+                        CRC32 crc = new CRC32();
+                        crc.update(b, 0, o);
+                        long c = crc.getValue();
+                        for(int k = 3; k >= 0; k--) {
+                                b[o++] = (byte)(c >>> (8*k));
+                        }
+
+                        char[] out = new char[BINARY_PREFIX.length()
+                                              + (b.length*8 + 4)/5];
+                        BINARY_PREFIX.getChars(0, BINARY_PREFIX.length(),
+                                               out, 0);
+                        o = BINARY_PREFIX.length();
+                        int acc = 0, bits = 0;
+                        for(int i = 0; i < b.length; i++) {
+                                acc = (acc << 8) | (b[i] & 0xFF);
+                                bits += 8;
+                                while(bits >= 5) {
+                                        bits -= 5;
+                                        out[o++] = B32.charAt((acc >>> bits)
+                                                              & 0x1F);
+                                }
+                        }
+                        if(bits > 0) {
+                                out[o++] = B32.charAt((acc << (5 - bits))
+                                                      & 0x1F);
+                        }
+                        return out;
+                } finally {
+                        Arrays.fill(b, (byte)0);
+                }
+        }
+
+        private static int putSeed(byte[] b, int o, char[] seed) {
+                b[o++] = (byte)seed.length;
+                for(int i = 0; i < seed.length; i++) {
+                        if(seed[i] > 0xFF) {
+                                throw new IllegalArgumentException(
+                                        "Seed character out of range");
+                        }
+                        b[o++] = (byte)seed[i];
+                }
+                return o;
+        }
+
+        private static boolean isBinary(CharSequence s) {
+                if(s.length() < BINARY_PREFIX.length()) {
+                        return false;
+                }
+                for(int i = 0; i < BINARY_PREFIX.length(); i++) {
+                        if(s.charAt(i) != BINARY_PREFIX.charAt(i)) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        /** The keystream format a seed pair names: that of the binary
+         * form, and VCCrypto.FORMAT_DEFAULT for the text form, which
+         * predates the others.
+         */
+        public static int decode_format(CharSequence s) {
+                if(!isBinary(s)) {
+                        return VCCrypto.FORMAT_DEFAULT;
+                }
+                byte[] b = unbase32(s);
+                int f = b[1] & 0xFF;
+                Arrays.fill(b, (byte)0);
+                return f;
+        }
+
+        private static char[][] decode_binary(CharSequence s) {
+                byte[] b = unbase32(s);
+                try {
+                        int o = 2;
+                        char[][] ret = new char[2][];
+                        for(int k = 0; k < 2; k++) {
+                                int len = b[o++] & 0xFF;
+                                ret[k] = new char[len];
+                                for(int i = 0; i < len; i++) {
+                                        ret[k][i] = (char)(b[o++] & 0xFF);
+                                }
+                        }
+                        if(o != b.length - 4) {
+                                throw new IllegalArgumentException(
+                                        "Bad seed length");
+                        }
+                        return ret;
+                } catch (ArrayIndexOutOfBoundsException e) {
+                        throw new IllegalArgumentException("Short seed");
+                } finally {
+                        Arrays.fill(b, (byte)0);
+                }
+        }
+
+        /* The checked octets of a binary seed pair */
+        private static byte[] unbase32(CharSequence s) {
+                int n = (s.length() - BINARY_PREFIX.length())*5/8;
+                byte[] b = new byte[n];
+                int acc = 0, bits = 0, o = 0;
+                for(int i = BINARY_PREFIX.length(); i < s.length(); i++) {
+                        int v = B32.indexOf(s.charAt(i));
+                        if(v < 0) {
+                                Arrays.fill(b, (byte)0);
+                                throw new IllegalArgumentException(
+                                        "Bad seed character");
+                        }
+                        acc = (acc << 5) | v;
+                        bits += 5;
+                        if(bits >= 8) {
+                                bits -= 8;
+                                if(o < n) {
+                                        b[o++] = (byte)(acc >>> bits);
+                                }
+                        }
+                }
+
+                if(n < 7 || (b[0] & 0xFF) != BINARY_VERSION) {
+                        Arrays.fill(b, (byte)0);
+                        throw new IllegalArgumentException(
+                                "Unknown seed version");
+                }
+                CRC32 crc = new CRC32();
+                crc.update(b, 0, n - 4);
+                long c = 0;
+                for(int k = n - 4; k < n; k++) {
+                        c = (c << 8) | (b[k] & 0xFF);
+                }
+                if(c != crc.getValue()) {
+                        Arrays.fill(b, (byte)0);
+                        throw new IllegalArgumentException("Bad seed checksum");
+                }
+                return b;
+        }
+}
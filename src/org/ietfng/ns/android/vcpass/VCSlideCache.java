@@ -0,0 +1,107 @@
+/** Cache of user slide bitplanes.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Every challenge masks its distinguished cells with the user's slide,
+ * which is fixed for the life of an enrollment.  Rather than clock the
+ * slide stream again for each challenge we keep recent slides, indexed
+ * by a digest of the seed and the keystream format, in a small LRU
+ * map.  Callers get a copy, so that an eviction (which overwrites the
+ * cached plane) can never change a slide out from under them.
+ */
+final class VCSlideCache {
+
+    /* Entries kept; guarded by cache */
+    private static int limit = VCCrypto.SLIDECACHE_SIZE;
+
+    private static final LinkedHashMap<ByteBuffer,byte[]> cache
+        = new LinkedHashMap<ByteBuffer,byte[]>(
+                VCCrypto.SLIDECACHE_SIZE+1, 0.75f, true) {
+            protected boolean
+            removeEldestEntry(Map.Entry<ByteBuffer,byte[]> e) {
+                if(size() > limit) {
+                    Arrays.fill(e.getValue(), (byte)0);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    private VCSlideCache() { }
+
+    /** Keep up to n entries hereafter, dropping (and overwriting) the
+     * least recently used of any beyond that now.
+     */
+    static final void
+    setSize(final int n) {
+        synchronized(cache) {
+            limit = n;
+            Iterator<Map.Entry<ByteBuffer,byte[]>> i
+                = cache.entrySet().iterator();
+            while(cache.size() > n && i.hasNext()) {
+                Arrays.fill(i.next().getValue(), (byte)0);
+                i.remove();
+            }
+        }
+    }
+
+    /** Copy the slide bitplane for useed into out, generating it
+     * only on a miss.
+     */
+    static final void
+    get(final char[] useed, final int format, final byte[] out)
+    throws GeneralSecurityException
+    {
+        final VCTrace tr = VCTrace.current();
+        final long t0 = VCTrace.now(tr);
+
+        final ByteBuffer fp = VCKeyCache.fingerprint(useed);
+        final ByteBuffer id = ByteBuffer.allocate(fp.capacity() + 1);
+        id.put(fp).put((byte)format).flip();
+
+        synchronized(cache) {
+            byte[] s = cache.get(id);
+            if(s != null) {
+                System.arraycopy(s, 0, out, 0, s.length);
+                VCTrace.phase(tr, VCTrace.SLIDE, t0);
+                return;
+            }
+        }
+
+        /* As in VCKeyCache, generate without holding the lock */
+        VCTrace.count(tr, VCTrace.CACHE_MISSES, 1);
+        byte[] s = VCGenerator.generateSlideBits(useed, format, null);
+        System.arraycopy(s, 0, out, 0, s.length);
+        synchronized(cache) {
+            if(cache.containsKey(id)) {
+                Arrays.fill(s, (byte)0);
+            } else {
+                cache.put(id, s);
+            }
+        }
+        VCTrace.phase(tr, VCTrace.SLIDE, t0);
+    }
+
+    /** Forget (and overwrite) every cached slide. */
+    static final void
+    clear() {
+        synchronized(cache) {
+            Iterator<byte[]> i = cache.values().iterator();
+            while(i.hasNext()) {
+                Arrays.fill(i.next(), (byte)0);
+                i.remove();
+            }
+        }
+    }
+}
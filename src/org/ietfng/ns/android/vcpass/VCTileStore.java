@@ -0,0 +1,399 @@
+/** Per-user precomputed vocabulary tiles.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * A challenge only selects, per cell, one of VCVOC_SIZE vocabulary
+ * entries and masks the distinguished ones with the user's slide, and
+ * both the vocabulary and the slide are fixed for a seed pair.  So we
+ * compute every tile (cells * VCVOC_SIZE * cellbytes, 19200 octets)
+ * and the slide (3200 octets) once, after which each challenge is a
+ * few arraycopy calls; see VCGenerator.assembleChallengeBits.
+ *
+ * Stores are kept in a small in-memory LRU and, if given a directory,
+ * on disk.  As in VCSlideCache, nobody outside holds a store: an
+ * eviction wipes it, so challenges are assembled while holding the
+ * cache lock, which costs no more than the copy VCSlideCache makes.
+ * The on-disk form is
+ *
+ *      "VCT" version(1) format(int) iv(16) AES-CTR(slide tiles) mac(32)
+ *
+ * with the cipher and HMAC-SHA256 keys derived from both seeds' KDF
+ * output, so the file is useless without the seeds it caches.  Any
+ * file that does not verify is discarded and rebuilt; failure to
+ * write one is ignored, as the store is only ever an optimization.
+ */
+final class VCTileStore {
+
+    private static final byte[] MAGIC = { 'V', 'C', 'T', 1 };
+    private static final String CIPHER = "AES/CTR/NoPadding";
+    private static final String MAC = "HmacSHA256";
+    private static final int IVLEN = 16;
+    private static final int MACLEN = 32;
+
+    private static final int SLIDEBYTES
+        = VCGenerator.cells*VCGenerator.cellbytes;
+    private static final int TILEBYTES
+        = SLIDEBYTES*VCParameters.VCVOC_SIZE;
+
+    final int format;
+    private final byte[] slide;
+    private final byte[] tiles;
+
+    private VCTileStore(int format, byte[] slide, byte[] tiles) {
+        this.format = format;
+        this.slide = slide;
+        this.tiles = tiles;
+    }
+
+    /* Assemble the challenge for plain; hold the cache lock */
+    private byte[]
+    assemble(final int[] plain) {
+        return VCGenerator.assembleChallengeBits(tiles, slide, plain);
+    }
+
+    private void
+    wipe() {
+        Arrays.fill(slide, (byte)0);
+        Arrays.fill(tiles, (byte)0);
+    }
+
+    /* Entries kept; guarded by cache */
+    private static int limit = VCCrypto.TILECACHE_SIZE;
+
+    private static final LinkedHashMap<ByteBuffer,VCTileStore> cache
+        = new LinkedHashMap<ByteBuffer,VCTileStore>(
+                VCCrypto.TILECACHE_SIZE+1, 0.75f, true) {
+            protected boolean
+            removeEldestEntry(Map.Entry<ByteBuffer,VCTileStore> e) {
+                if(size() > limit) {
+                    e.getValue().wipe();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    /** The challenge for plain as a bitplane, from the seed pair's
+     * store, which is built on a miss.
+     *
+     * dir, if non-null, is searched for (and receives) the encrypted
+     * store.  pcb sees one call per cell only if tiles are built.
+     * Returns null if the calling thread is interrupted.
+     */
+    static final byte[]
+    challengeBits(
+        final File dir,
+        final char[] vseed,
+        final char[] useed,
+        final int format,
+        final int[] plain,
+        final VCGenerator.ProgCallback pcb
+    ) throws
+        GeneralSecurityException
+    {
+        final VCTrace tr = VCTrace.current();
+        final long t0 = VCTrace.now(tr);
+        try {
+            return challengeBits(dir, vseed, useed, format, plain, pcb, tr);
+        } finally {
+            VCTrace.phase(tr, VCTrace.TILES, t0);
+        }
+    }
+
+    private static final byte[]
+    challengeBits(
+        final File dir,
+        final char[] vseed,
+        final char[] useed,
+        final int format,
+        final int[] plain,
+        final VCGenerator.ProgCallback pcb,
+        final VCTrace tr
+    ) throws
+        GeneralSecurityException
+    {
+        final ByteBuffer id = id(vseed, useed, format);
+
+        synchronized(cache) {
+            VCTileStore ts = cache.get(id);
+            if(ts != null) {
+                return ts.assemble(plain);
+            }
+        }
+        VCTrace.count(tr, VCTrace.CACHE_MISSES, 1);
+
+        final File f = (dir == null) ? null : new File(dir, name(id));
+
+        VCTileStore ts = null;
+        if(f != null && f.exists()) {
+            ts = load(f, vseed, useed, format);
+            if(ts == null) {
+                f.delete();
+            }
+        }
+
+        if(ts == null) {
+            byte[] s = new byte[SLIDEBYTES];
+            VCTrace.alloc(tr, SLIDEBYTES);
+            VCSlideCache.get(useed, format, s);
+            byte[] t = VCGenerator.generateTiles(vseed, format, pcb);
+            if(t == null) {
+                Arrays.fill(s, (byte)0);
+                return null;
+            }
+            ts = new VCTileStore(format, s, t);
+
+            if(f != null) {
+                save(f, ts, vseed, useed);
+            }
+        }
+
+        synchronized(cache) {
+            VCTileStore o = cache.get(id);
+            if(o != null) {
+                ts.wipe();
+                return o.assemble(plain);
+            }
+            /* The newest entry; any eviction this causes is another */
+            cache.put(id, ts);
+            return ts.assemble(plain);
+        }
+    }
+
+    /** Keep up to n entries hereafter, dropping (and overwriting) the
+     * least recently used of any beyond that now.
+     */
+    static final void
+    setSize(final int n) {
+        synchronized(cache) {
+            limit = n;
+            Iterator<Map.Entry<ByteBuffer,VCTileStore>> i
+                = cache.entrySet().iterator();
+            while(cache.size() > n && i.hasNext()) {
+                i.next().getValue().wipe();
+                i.remove();
+            }
+        }
+    }
+
+    /** Forget (and overwrite) every store held in memory. */
+    static final void
+    clear() {
+        synchronized(cache) {
+            Iterator<VCTileStore> i = cache.values().iterator();
+            while(i.hasNext()) {
+                i.next().wipe();
+                i.remove();
+            }
+        }
+    }
+
+    /** Forget (and overwrite) the store for one seed pair, and
+     * delete its file from dir, if any; for when the pair is cleared
+     * or replaced.
+     */
+    static final void
+    forget(File dir, char[] vseed, char[] useed, int format)
+    throws GeneralSecurityException
+    {
+        ByteBuffer id = id(vseed, useed, format);
+        synchronized(cache) {
+            VCTileStore ts = cache.remove(id);
+            if(ts != null) {
+                ts.wipe();
+            }
+            if(dir != null) {
+                new File(dir, name(id)).delete();
+            }
+        }
+    }
+
+    private static final ByteBuffer
+    id(final char[] vseed, final char[] useed, final int format)
+    throws GeneralSecurityException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(VCKeyCache.fingerprint(vseed));
+        md.update(VCKeyCache.fingerprint(useed));
+        md.update((byte)format);
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    private static final String
+    name(final ByteBuffer id) {
+        StringBuilder sb = new StringBuilder("tiles-");
+        for(int i = 0; i < id.capacity(); i++) {
+            sb.append(Integer.toHexString((id.get(i) & 0xFF) | 0x100)
+                             .substring(1));
+        }
+        return sb.append(".vct").toString();
+    }
+
+    /* HMAC(vkey, label || format || ukey), truncated to len octets */
+    private static final SecretKeySpec
+    storeKey(
+        final char[] vseed,
+        final char[] useed,
+        final int format,
+        final String label,
+        final String alg,
+        final int len
+    ) throws
+        GeneralSecurityException
+    {
+        byte[] vk = VCKeyCache.get(vseed).key.getEncoded();
+        byte[] uk = VCKeyCache.get(useed).key.getEncoded();
+        Mac m = Mac.getInstance(MAC, VCCrypto.provider());
+        m.init(new SecretKeySpec(vk, MAC));
+        try {
+            m.update(label.getBytes("US-ASCII"));
+        } catch (java.io.UnsupportedEncodingException uee) {
+            throw new GeneralSecurityException(uee.toString());
+        }
+        m.update((byte)format);
+        byte[] k = m.doFinal(uk);
+        Arrays.fill(vk, (byte)0);
+        Arrays.fill(uk, (byte)0);
+
+        SecretKeySpec ks = new SecretKeySpec(k, 0, len, alg);
+        Arrays.fill(k, (byte)0);
+        return ks;
+    }
+
+    private static final Cipher
+    cipher(int mode, char[] vseed, char[] useed, int format, byte[] iv)
+    throws GeneralSecurityException
+    {
+        Cipher c = Cipher.getInstance(CIPHER, VCCrypto.provider());
+        c.init(mode, storeKey(vseed, useed, format, "VCPass tile cipher",
+                              VCCrypto.CSKEYALG,
+                              VCCrypto.CSKEYBITS/8),
+               new IvParameterSpec(iv));
+        return c;
+    }
+
+    private static final Mac
+    mac(char[] vseed, char[] useed, int format)
+    throws GeneralSecurityException
+    {
+        Mac m = Mac.getInstance(MAC, VCCrypto.provider());
+        m.init(storeKey(vseed, useed, format, "VCPass tile mac",
+                        MAC, MACLEN));
+        return m;
+    }
+
+    private static final void
+    save(File f, VCTileStore ts, char[] vseed, char[] useed)
+    throws GeneralSecurityException
+    {
+        byte[] iv = new byte[IVLEN];
+        new SecureRandom().nextBytes(iv);
+
+        Cipher c = cipher(Cipher.ENCRYPT_MODE, vseed, useed, ts.format, iv);
+        byte[] ct = new byte[SLIDEBYTES + TILEBYTES];
+        c.update(ts.slide, 0, SLIDEBYTES, ct, 0);
+        c.doFinal(ts.tiles, 0, TILEBYTES, ct, SLIDEBYTES);
+
+        Mac m = mac(vseed, useed, ts.format);
+        m.update(MAGIC);
+        m.update(ByteBuffer.allocate(4).putInt(0, ts.format).array());
+        m.update(iv);
+        byte[] tag = m.doFinal(ct);
+
+        /* Write beside the target and rename, so that a reader never
+         * sees half a file.
+         */
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            DataOutputStream os
+                = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                os.write(MAGIC);
+                os.writeInt(ts.format);
+                os.write(iv);
+                os.write(ct);
+                os.write(tag);
+            } finally {
+                os.close();
+            }
+            if(!tmp.renameTo(f)) {
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            tmp.delete();
+        }
+    }
+
+    private static final VCTileStore
+    load(File f, char[] vseed, char[] useed, int format)
+    throws GeneralSecurityException
+    {
+        byte[] magic = new byte[MAGIC.length];
+        byte[] iv = new byte[IVLEN];
+        byte[] ct = new byte[SLIDEBYTES + TILEBYTES];
+        byte[] tag = new byte[MACLEN];
+
+        try {
+            DataInputStream is
+                = new DataInputStream(new FileInputStream(f));
+            try {
+                is.readFully(magic);
+                if(!Arrays.equals(magic, MAGIC)
+                        || is.readInt() != format) {
+                    return null;
+                }
+                is.readFully(iv);
+                is.readFully(ct);
+                is.readFully(tag);
+                if(is.read() != -1) {
+                    return null;
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException ioe) {
+            return null;
+        }
+
+        Mac m = mac(vseed, useed, format);
+        m.update(magic);
+        m.update(ByteBuffer.allocate(4).putInt(0, format).array());
+        m.update(iv);
+        if(!MessageDigest.isEqual(m.doFinal(ct), tag)) {
+            return null;
+        }
+
+        Cipher c = cipher(Cipher.DECRYPT_MODE, vseed, useed, format, iv);
+        byte[] s = new byte[SLIDEBYTES];
+        byte[] t = new byte[TILEBYTES];
+        c.update(ct, 0, SLIDEBYTES, s, 0);
+        c.doFinal(ct, SLIDEBYTES, TILEBYTES, t, 0);
+        Arrays.fill(ct, (byte)0);
+
+        return new VCTileStore(format, s, t);
+    }
+}
@@ -0,0 +1,206 @@
+/** Timings and counts of slide and challenge generation.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+/*
+ * A trace covers one piece of work (one challenge, say), from begin()
+ * on the thread that does it to end(), and accumulates
+ *
+ *      nanoseconds spent in each of the phases below; phases may
+ *          nest (SLIDE includes the KEYSTREAM of a cache miss, TOTAL
+ *          includes everything), so they need not sum to TOTAL;
+ *      counts: octets of keystream run through a cipher, arrays (and
+ *          octets of them) allocated for planes, tiles and keystream
+ *          buffers, and cache misses.
+ *
+ * Finished traces are handed to the installed Sink, if any; toJson()
+ * is the usual export, and VCTraceLog sends it to logcat.
+ *
+ * With no sink installed tracing is off: begin() and current() return
+ * null and every other entry point does nothing with a null trace,
+ * so an instrumentation point costs a volatile read and a few
+ * branches.  Work farmed out to other threads (VCGenerator's parallel
+ * cells) is traced by attach()ing the caller's trace there.
+ */
+final class VCTrace {
+
+        /* Phases */
+    static final int KDF       = 0;     /* VCKeyCache derivations */
+    static final int SLIDE     = 1;     /* VCSlideCache lookups */
+    static final int TILES     = 2;     /* VCTileStore lookups */
+    static final int KEYSTREAM = 3;     /* Fetching cells of keystream */
+    static final int MASK      = 4;     /* VCGenerator.maskCell */
+    static final int RENDER    = 5;     /* VCGenerator.bitsToRgb565 */
+    static final int BITMAP    = 6;     /* Pixels into a Bitmap */
+    static final int HANDOFF   = 7;     /* Worker done to UI thread */
+    static final int TOTAL     = 8;
+    private static final String[] PHASES = {
+        "kdf", "slide", "tiles", "keystream", "mask", "render", "bitmap",
+        "handoff", "total"
+    };
+
+        /* Counters */
+    static final int KEYSTREAM_BYTES = 0;
+    static final int ALLOCS          = 1;
+    static final int ALLOC_BYTES     = 2;
+    static final int CACHE_MISSES    = 3;
+    private static final String[] COUNTERS = {
+        "keystream_bytes", "allocs", "alloc_bytes", "cache_misses"
+    };
+
+        /** Receives each trace as it ends */
+    interface Sink {
+        void report(VCTrace t);
+    }
+
+    private static volatile Sink sink = null;
+
+    private static final ThreadLocal<VCTrace> current
+        = new ThreadLocal<VCTrace>();
+
+    final String what;
+    private final long start;
+    private final long[] phases = new long[PHASES.length];
+    private final long[] counts = new long[COUNTERS.length];
+
+    private VCTrace(String what) {
+        this.what = what;
+        this.start = System.nanoTime();
+    }
+
+    /** Install s, or with null turn tracing off. */
+    static final void
+    setSink(final Sink s) {
+        sink = s;
+    }
+
+    /** Start tracing what on this thread; null if tracing is off. */
+    static final VCTrace
+    begin(final String what) {
+        if(sink == null) {
+            return null;
+        }
+        VCTrace t = new VCTrace(what);
+        current.set(t);
+        return t;
+    }
+
+    /** The trace running on this thread, or null. */
+    static final VCTrace
+    current() {
+        if(sink == null) {
+            return null;
+        }
+        return current.get();
+    }
+
+    /** Make t this thread's trace until detach(t). */
+    static final void
+    attach(final VCTrace t) {
+        if(t != null) {
+            current.set(t);
+        }
+    }
+
+    static final void
+    detach(final VCTrace t) {
+        if(t != null) {
+            current.remove();
+        }
+    }
+
+    /** A timestamp for phase(), if t is live. */
+    static final long
+    now(final VCTrace t) {
+        return (t == null) ? 0 : System.nanoTime();
+    }
+
+    /** Charge the time since since (from now()) to phase p of t. */
+    static final void
+    phase(final VCTrace t, final int p, final long since) {
+        if(t != null) {
+            t.add(t.phases, p, System.nanoTime() - since);
+        }
+    }
+
+    /** Add n to counter c of t. */
+    static final void
+    count(final VCTrace t, final int c, final long n) {
+        if(t != null) {
+            t.add(t.counts, c, n);
+        }
+    }
+
+    /** Count an allocation of n octets against t. */
+    static final void
+    alloc(final VCTrace t, final long n) {
+        if(t != null) {
+            t.add(t.counts, ALLOCS, 1);
+            t.add(t.counts, ALLOC_BYTES, n);
+        }
+    }
+
+    /** Finish t, which need not be running on this thread, and
+     * report it.
+     */
+    static final void
+    end(final VCTrace t) {
+        if(t == null) {
+            return;
+        }
+        t.add(t.phases, TOTAL, System.nanoTime() - t.start);
+
+        Sink s = sink;
+        if(s != null) {
+            s.report(t);
+        }
+    }
+
+    private synchronized void
+    add(final long[] a, final int i, final long n) {
+        a[i] += n;
+    }
+
+    synchronized final long
+    phase(final int p) {
+        return phases[p];
+    }
+
+    synchronized final long
+    count(final int c) {
+        return counts[c];
+    }
+
+    /** {"what":..., "ns":{phase:...}, "counts":{counter:...}} */
+    synchronized final String
+    toJson() {
+        StringBuilder sb = new StringBuilder("{\"what\":\"");
+        for(int i = 0; i < what.length(); i++) {
+            char c = what.charAt(i);
+            if(c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c < ' ' ? '?' : c);
+        }
+        sb.append("\",\"ns\":");
+        object(sb, PHASES, phases);
+        sb.append(",\"counts\":");
+        object(sb, COUNTERS, counts);
+        return sb.append('}').toString();
+    }
+
+    private static final void
+    object(final StringBuilder sb, final String[] ks, final long[] vs) {
+        sb.append('{');
+        for(int i = 0; i < ks.length; i++) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(ks[i]).append("\":").append(vs[i]);
+        }
+        sb.append('}');
+    }
+}
@@ -0,0 +1,36 @@
+/** Logcat export of generation traces.
+ * @author Nathaniel Filardo
+ * @license AGPLv3.
+ */
+
+package org.ietfng.ns.android.vcpass;
+
+import android.util.Log;
+
+/*
+ * Each finished VCTrace is logged as one line of JSON under TAG.
+ * Tracing is off unless that tag is loggable at DEBUG, so that it
+ * can be turned on in the field with
+ *
+ *      adb shell setprop log.tag.VCTrace DEBUG
+ *
+ * and the app restarted.
+ */
+final class VCTraceLog implements VCTrace.Sink {
+
+    static final String TAG = "VCTrace";
+
+    private VCTraceLog() { }
+
+    public void report(VCTrace t) {
+        Log.d(TAG, t.toJson());
+    }
+
+        /** Turn tracing on if TAG is loggable. */
+    static final void
+    installIfLoggable() {
+        if(Log.isLoggable(TAG, Log.DEBUG)) {
+            VCTrace.setSink(new VCTraceLog());
+        }
+    }
+}